@@ -0,0 +1,341 @@
+/**
+ * CMAF for DASH and HLS Exercise
+ *
+ * One set of fMP4 (CMAF) segments referenced by both a DASH manifest and an HLS master and
+ * media playlists, instead of a second set of TS muxings for HLS. Both manifests are generated
+ * in parallel once the encoding is done. Given a synced local mirror of the bucket, the fMP4
+ * bytes actually written are measured and set against a model of the TS muxings HLS would
+ * otherwise need. Running it again once the mirror has synced doesn't encode again: the job is
+ * found in the dedup index and only the report runs.
+ *
+ * Usage: java CmafDashAndHls [local mirror dir]
+ */
+
+import com.bitmovin.api.sdk.BitmovinApi;
+import com.bitmovin.api.sdk.model.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+public class CmafDashAndHls {
+  /**
+   * Bunch of variables
+   */
+  private static BitmovinApi bitmovinApi;
+  private static String myApiKey;
+  private static String myS3BucketName;
+  private static String myS3AccessKey;
+  private static String myS3SecretKey;
+  private static final int videoHeight = 720;
+  private static final long videoBitrate = 4000000L;
+  private static final long audioBitrate = 128000L;
+  private static final double audioFramesPerSecond = 48000.0 / 1024.0;
+  private static final double defaultFrameRate = 25.0;
+
+  /**
+   * Get a variable from the environment and throw exception if it doesn't exist.
+   */
+  private static String macGetEnv(String name) throws RuntimeException {
+    String value = DryRunPlanner.env(name);
+    if (value == null) {
+      throw new RuntimeException("Can't get "+name);
+    }
+    return value;
+  }
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+
+    // some variables
+    final String inputPath = "/input/flower_show_1080p.mov";
+    final String outputBase = "/output/encodings/cmaf_dash_and_hls";
+    final String dashFileName = "stream.mpd";
+    final String hlsFileName = "master.m3u8";
+    final String hostName = "mackenzie-emea.s3.eu-west-1.amazonaws.com";
+
+    // line segments up with the source's own keyframes, or fall back to 4 s
+    final KeyframeSegmentPlanner.Plan segmentPlan =
+        KeyframeSegmentPlanner.planOrDefault("https://" + hostName + inputPath, 4.0);
+    final double segmentLength = segmentPlan.segmentLength;
+    final double frameRate = segmentPlan.frameRate > 0 ? segmentPlan.frameRate : defaultFrameRate;
+
+    // get some config stuff from environment variables.
+    myApiKey = macGetEnv("BITMOVIN_API_KEY");
+    myS3BucketName = macGetEnv("BITMOVIN_S3_BUCKET_NAME");
+    myS3AccessKey = macGetEnv("BITMOVIN_S3_ACCESS_KEY");
+    myS3SecretKey = macGetEnv("BITMOVIN_S3_SECRET_KEY");
+
+    // don't encode the same source with the same settings twice
+    try (EncodeDedup.Claim claim = EncodeDedup.open().claim(new EncodeDedup.Fingerprint()
+        .input(hostName, inputPath)
+        .with("video.codec", "H264 " + PresetConfiguration.VOD_STANDARD)
+        .with("video.height", videoHeight)
+        .with("video.bitrate", videoBitrate)
+        .with("video.mode", StreamMode.STANDARD)
+        .with("video.gop", segmentPlan.gopFrames)
+        .with("video.sceneCut", segmentPlan.gopFrames > 0 ? "off" : "preset")
+        .with("audio.codec", "AAC")
+        .with("audio.bitrate", audioBitrate)
+        .with("audio.mode", StreamMode.STANDARD)
+        .with("muxing", "FMP4 " + segmentLength)
+        .with("manifest", "DASH default " + DashManifestDefaultVersion.V1 + ", HLS default "
+            + HlsManifestDefaultVersion.V1))) {
+      // each fingerprint writes to its own directory, so no other job can overwrite the
+      // files an index entry points at
+      final String outputPath = claim.outputPath(outputBase);
+
+      if (claim.previous() != null) {
+        System.out.println("Already encoded: " + claim.previous());
+        reportFromMirror(args, outputPath, frameRate, segmentLength);
+        return;
+      }
+
+      // create API (DryRunPlanner swaps in its recorder during a dry run)
+      bitmovinApi = DryRunPlanner.api(myApiKey);
+
+      // create the input
+      HttpInput input = new HttpInput();
+      input.setHost(hostName);
+      input = bitmovinApi.encoding.inputs.http.create(input);
+
+      // create the output
+      S3Output output = new S3Output();
+      output.setBucketName(myS3BucketName);
+      output.setAccessKey(myS3AccessKey);
+      output.setSecretKey(myS3SecretKey);
+      output = bitmovinApi.encoding.outputs.s3.create(output);
+
+      // create the encoding
+      Encoding encoding = new Encoding();
+      encoding.setCloudRegion(CloudRegion.AUTO);
+      encoding.setEncoderVersion("LATEST");
+      encoding.setName("MacKenzie Exercise - CMAF for DASH and HLS");
+      encoding = bitmovinApi.encoding.encodings.create(encoding);
+
+      // create the H264 video config
+      H264VideoConfiguration videoConfiguration = new H264VideoConfiguration();
+      videoConfiguration.setName(String.format("H.264 %dp", videoHeight));
+      videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_STANDARD);
+      videoConfiguration.setHeight(videoHeight);
+      videoConfiguration.setBitrate(videoBitrate);
+      segmentPlan.apply(videoConfiguration);
+      videoConfiguration =
+          bitmovinApi.encoding.configurations.video.h264.create(videoConfiguration);
+
+      // create the AAC audio config
+      AacAudioConfiguration audioConfiguration = new AacAudioConfiguration();
+      audioConfiguration.setName(String.format("AAC %d kbit/s", audioBitrate));
+      audioConfiguration.setBitrate(audioBitrate);
+      audioConfiguration = bitmovinApi.encoding.configurations.audio.aac.create(audioConfiguration);
+
+      // create input stream
+      StreamInput streamInput = new StreamInput();
+      streamInput.setInputId(input.getId());
+      streamInput.setInputPath(inputPath);
+      streamInput.setSelectionMode(StreamSelectionMode.AUTO);
+
+      // set video stream
+      Stream streamVid = new Stream();
+      streamVid.addInputStreamsItem(streamInput);
+      streamVid.setCodecConfigId(videoConfiguration.getId());
+      streamVid.setMode(StreamMode.STANDARD);
+
+      // set audio stream
+      Stream streamAudio = new Stream();
+      streamAudio.addInputStreamsItem(streamInput);
+      streamAudio.setCodecConfigId(audioConfiguration.getId());
+      streamAudio.setMode(StreamMode.STANDARD);
+
+      // create the streams
+      streamVid = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamVid);
+      streamAudio = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamAudio);
+
+      // create encoding output
+      EncodingOutput encodingOutput = new EncodingOutput();
+      encodingOutput.setOutputPath(outputPath);
+      encodingOutput.setOutputId(output.getId());
+
+      // create the fmp4 video muxing; these segments are the only media written
+      MuxingStream muxingStreamVid = new MuxingStream();
+      muxingStreamVid.setStreamId(streamVid.getId());
+
+      Fmp4Muxing muxingVid = new Fmp4Muxing();
+      encodingOutput.setOutputPath(outputPath + "/video");
+      muxingVid.addOutputsItem(encodingOutput);
+      muxingVid.setSegmentLength(segmentLength);
+      muxingVid.addStreamsItem(muxingStreamVid);
+      bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingVid);
+
+      // create audio muxing
+      MuxingStream muxingStreamAudio = new MuxingStream();
+      muxingStreamAudio.setStreamId(streamAudio.getId());
+
+      Fmp4Muxing muxingAudio = new Fmp4Muxing();
+      encodingOutput.setOutputPath(outputPath + "/audio");
+      muxingAudio.addOutputsItem(encodingOutput);
+      muxingAudio.setSegmentLength(segmentLength);
+      muxingAudio.addStreamsItem(muxingStreamAudio);
+      bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingAudio);
+
+      // start the encoding, or queue it if an EncodingScheduler is taking them
+      StartEncodingRequest startEncodingRequest = new StartEncodingRequest();
+      EncodingScheduler.start(bitmovinApi, encoding.getId(), startEncodingRequest);
+
+      // create the DASH manifest
+      DashManifestDefault dashManifestDefault = new DashManifestDefault();
+      dashManifestDefault.setEncodingId(encoding.getId());
+      dashManifestDefault.setManifestName(dashFileName);
+      dashManifestDefault.setVersion(DashManifestDefaultVersion.V1);
+      encodingOutput.setOutputPath(outputPath);
+      dashManifestDefault.addOutputsItem(encodingOutput);
+      dashManifestDefault =
+          bitmovinApi.encoding.manifests.dash.defaultapi.create(dashManifestDefault);
+
+      // create the HLS master and media playlists over the same fmp4 segments
+      HlsManifestDefault hlsManifestDefault = new HlsManifestDefault();
+      hlsManifestDefault.setEncodingId(encoding.getId());
+      hlsManifestDefault.setManifestName(hlsFileName);
+      hlsManifestDefault.setVersion(HlsManifestDefaultVersion.V1);
+      hlsManifestDefault.addOutputsItem(encodingOutput);
+      hlsManifestDefault =
+          bitmovinApi.encoding.manifests.hls.defaultapi.create(hlsManifestDefault);
+
+      // wait for it to be done
+      Task task;
+      do {
+        DryRunPlanner.pause(5000);
+        task = bitmovinApi.encoding.encodings.status(encoding.getId());
+      } while (task.getStatus() != Status.FINISHED
+          && task.getStatus() != Status.ERROR
+          && task.getStatus() != Status.CANCELED);
+
+      if (task.getStatus() != Status.FINISHED) {
+        throw new RuntimeException("Encoding " + task.getStatus());
+      }
+
+      // generate both manifests at the same time
+      final String dashManifestId = dashManifestDefault.getId();
+      final String hlsManifestId = hlsManifestDefault.getId();
+      CompletableFuture<Status> dash = CompletableFuture.supplyAsync(() -> {
+        bitmovinApi.encoding.manifests.dash.start(dashManifestId);
+        return waitForManifest(() -> bitmovinApi.encoding.manifests.dash.status(dashManifestId));
+      });
+      CompletableFuture<Status> hls = CompletableFuture.supplyAsync(() -> {
+        bitmovinApi.encoding.manifests.hls.start(hlsManifestId);
+        return waitForManifest(() -> bitmovinApi.encoding.manifests.hls.status(hlsManifestId));
+      });
+      if (dash.get() != Status.FINISHED || hls.get() != Status.FINISHED) {
+        throw new RuntimeException(String.format("Manifest generation failed (DASH %s, HLS %s)",
+            dash.get(), hls.get()));
+      }
+
+      // remember it so running again (say, once the mirror has synced) only reports
+      claim.complete(new EncodeDedup.Result("s3://" + myS3BucketName + outputPath, dashFileName,
+          encoding.getId()));
+
+      reportFromMirror(args, outputPath, frameRate, segmentLength);
+    }
+  }
+
+  /**
+   * Measure what was written, if a mirror was given and has it by now.
+   */
+  private static void reportFromMirror(String[] args, String outputPath, double frameRate,
+      double segmentLength) throws IOException {
+    if (args.length == 0 || DryRunPlanner.isRecording()) {
+      return;
+    }
+    Path mirror = Paths.get(args[0], outputPath);
+    if (Files.isDirectory(mirror.resolve("video")) && Files.isDirectory(mirror.resolve("audio"))) {
+      report(mirror, frameRate, segmentLength);
+    } else {
+      System.out.println("No segments under " + mirror + " yet; sync the mirror and run again,"
+          + " it won't encode twice");
+    }
+  }
+
+  /**
+   * Poll a manifest's status until it settles.
+   */
+  private static Status waitForManifest(Supplier<Task> status) {
+    Task task;
+    do {
+      try {
+        DryRunPlanner.pause(2000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return Status.CANCELED;
+      }
+      task = status.get();
+    } while (task.getStatus() != Status.FINISHED
+        && task.getStatus() != Status.ERROR
+        && task.getStatus() != Status.CANCELED);
+    return task.getStatus();
+  }
+
+  /**
+   * Bytes per second of a stream packaged as MPEG-TS: each access unit gets a PES header and is
+   * cut into 188-byte packets carrying 184 bytes, the last one padded, plus PAT and PMT at the
+   * start of every segment.
+   */
+  static double tsBytesPerSecond(long bitrate, double unitsPerSecond, int perUnitHeaderBytes,
+      double segmentLength) {
+    double unitBytes = bitrate / 8.0 / unitsPerSecond + perUnitHeaderBytes;
+    double packetsPerUnit = Math.ceil(unitBytes / 184.0);
+    return unitsPerSecond * packetsPerUnit * 188.0 + 2 * 188.0 / segmentLength;
+  }
+
+  /**
+   * Total size of the files under a directory, and how many of them are media segments.
+   */
+  private static long[] bytesAndSegments(Path directory) throws IOException {
+    long[] totals = new long[2];
+    try (java.util.stream.Stream<Path> files = Files.walk(directory)) {
+      for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+        totals[0] += Files.size(file);
+        if (file.getFileName().toString().endsWith(".m4s")) {
+          totals[1]++;
+        }
+      }
+    }
+    return totals;
+  }
+
+  /**
+   * Storage and HLS egress of the fMP4 segments this encoding wrote, measured in the mirror,
+   * against fMP4 for DASH plus TS for HLS. Only the TS side is modelled, fed with the bitrates
+   * measured from the fMP4 files; those include the fMP4 box overhead, so TS comes out slightly
+   * high. Duration is segments times segment length, so a short last segment makes it slightly
+   * long.
+   */
+  private static void report(Path mirror, double frameRate, double segmentLength)
+      throws IOException {
+    final double mib = 1024.0 * 1024.0;
+    long[] video = bytesAndSegments(mirror.resolve("video"));
+    long[] audio = bytesAndSegments(mirror.resolve("audio"));
+    if (video[1] == 0) {
+      System.out.println("No video segments under " + mirror);
+      return;
+    }
+    double seconds = video[1] * segmentLength;
+    double fmp4 = video[0] + audio[0];
+    // video PES header with PTS/DTS plus AUD; audio PES header plus ADTS header
+    double ts = seconds
+        * (tsBytesPerSecond((long) (video[0] * 8 / seconds), frameRate, 25, segmentLength)
+            + tsBytesPerSecond((long) (audio[0] * 8 / seconds), audioFramesPerSecond, 21,
+                segmentLength));
+
+    double separate = fmp4 + ts;
+    System.out.printf("Measured %d video segments (about %.0f s) at %.3f fps in %s:%n",
+        video[1], seconds, frameRate, mirror);
+    System.out.printf("  storage:   CMAF %.1f MiB measured vs fMP4 + TS %.1f MiB, TS modelled"
+        + " (%.1f%% less)%n", fmp4 / mib, separate / mib, 100.0 * (1.0 - fmp4 / separate));
+    System.out.printf("  HLS viewer egress: fMP4 %.1f MiB measured vs TS %.1f MiB modelled"
+        + " (%.1f%% less)%n", fmp4 / mib, ts / mib, 100.0 * (1.0 - fmp4 / ts));
+  }
+}
@@ -0,0 +1,664 @@
+/**
+ * Dry Run Planner
+ *
+ * Runs an exercise's own main against a recording stand-in for the Bitmovin API, so the plan is
+ * built from exactly the calls the exercise makes: every create answers with its own body plus a
+ * fresh id, every status poll answers FINISHED, and nothing leaves the process. While recording,
+ * the exercises don't sleep between polls, don't probe the source, don't touch a local mirror and
+ * don't need the BITMOVIN_* secrets; their dedup index lives in a scratch dir that is deleted
+ * afterwards. The recorded graph is checked for dangling references and output-path collisions,
+ * and the critical path is estimated from per-endpoint latencies recorded against the real API.
+ *
+ * Usage: java DryRunPlanner [-l latencies.properties] <exercise class> [exercise args...]
+ * Record latencies by running any exercise for real with DRY_RUN_LATENCIES=<file> set.
+ */
+
+import com.bitmovin.api.sdk.BitmovinApi;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import feign.Client;
+import feign.Request;
+import feign.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+public class DryRunPlanner {
+  /**
+   * Bunch of variables
+   */
+  private static final ObjectMapper json = new ObjectMapper();
+  private static final Pattern resourceId =
+      Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+  private static final Set<String> actions = Set.of("start", "stop");
+  private static final List<String> fileNameFields =
+      List.of("filename", "manifestName", "spriteName", "vttName", "pattern");
+  private static volatile Recorder recording;
+  private static volatile Path scratch;
+
+  /**
+   * The API the exercises talk to: the recorder during a dry run, otherwise the real API, timed
+   * into DRY_RUN_LATENCIES if that is set.
+   */
+  public static BitmovinApi api(String apiKey) {
+    BitmovinApi.Builder builder = BitmovinApi.builder().withApiKey(apiKey);
+    String latencies = System.getenv("DRY_RUN_LATENCIES");
+    if (recording != null) {
+      builder.withClient(recording);
+    } else if (latencies != null) {
+      builder.withClient(new LatencyRecorder(Paths.get(latencies)));
+    }
+    return builder.build();
+  }
+
+  /**
+   * True while an exercise is running against the recorder.
+   */
+  public static boolean isRecording() {
+    return recording != null;
+  }
+
+  /**
+   * An environment variable, or a placeholder while recording so a dry run works without the real
+   * secrets (and they never end up in a plan).
+   */
+  public static String env(String name) {
+    return isRecording() ? "dry-run-" + name.toLowerCase() : System.getenv(name);
+  }
+
+  /**
+   * Sleep between status polls. While recording every poll already answers FINISHED, so there is
+   * nothing to wait for.
+   */
+  public static void pause(long ms) throws InterruptedException {
+    if (!isRecording()) {
+      Thread.sleep(ms);
+    }
+  }
+
+  /**
+   * A directory that lives only as long as the current dry run.
+   */
+  public static Path scratchDirectory() {
+    Path directory = scratch;
+    if (directory == null) {
+      throw new IllegalStateException("Not recording");
+    }
+    return directory;
+  }
+
+  /**
+   * Name an API call the same way when recording a plan and when recording latencies: the path
+   * without ids, plus create/get/delete where the path alone doesn't say what happens.
+   */
+  static String endpoint(String method, List<String> segments) {
+    List<String> names = new ArrayList<>();
+    boolean endsWithId = false;
+    for (String segment : segments) {
+      endsWithId = resourceId.matcher(segment).matches();
+      if (!endsWithId) {
+        names.add(segment);
+      }
+    }
+    String name = String.join(".", names);
+    String last = segments.isEmpty() ? "" : segments.get(segments.size() - 1);
+    if (method.equals("POST") && !actions.contains(last)) {
+      return name + ".create";
+    } else if (method.equals("GET") && endsWithId) {
+      return name + ".get";
+    } else if (method.equals("DELETE")) {
+      return name + ".delete";
+    }
+    return name;
+  }
+
+  /**
+   * Path segments after the API version, without the query.
+   */
+  static List<String> segments(String url) {
+    String path = URI.create(url).getPath();
+    int version = path.indexOf("/v1/");
+    if (version >= 0) {
+      path = path.substring(version + 3);
+    }
+    List<String> segments = new ArrayList<>();
+    for (String segment : path.split("/")) {
+      if (!segment.isEmpty()) {
+        segments.add(segment);
+      }
+    }
+    return segments;
+  }
+
+  /**
+   * "encoding.encodings.status" becomes "encoding.encodings.run".
+   */
+  private static String runEndpoint(String statusEndpoint) {
+    return statusEndpoint.substring(0, statusEndpoint.length() - "status".length()) + "run";
+  }
+
+  /**
+   * One recorded API call. Dependencies always point at earlier nodes, so insertion order is a
+   * topological order.
+   */
+  public static final class Node {
+    final int index;
+    final String endpoint;
+    final String label;
+    final List<Node> deps = new ArrayList<>();
+    String encodingId;
+    String outputId;
+    String outputPath;
+    final List<String> fileNames = new ArrayList<>();
+    boolean ownsDirectory;
+
+    Node(int index, String endpoint, String label) {
+      this.index = index;
+      this.endpoint = endpoint;
+      this.label = label;
+    }
+
+    /**
+     * Where this node writes: its directory if it owns one, otherwise each of its files.
+     */
+    List<String> targets() {
+      List<String> targets = new ArrayList<>();
+      if (outputPath == null) {
+        return targets;
+      }
+      String directory = outputId + ":" + normalize(outputPath) + "/";
+      if (ownsDirectory) {
+        targets.add(directory);
+      }
+      for (String fileName : fileNames) {
+        targets.add(directory + fileName);
+      }
+      return targets;
+    }
+
+    @Override
+    public String toString() {
+      return "#" + index + " " + endpoint + " (" + label + ")";
+    }
+  }
+
+  /**
+   * The resource graph of one exercise run, built call by call from the requests the SDK sends.
+   * Output paths come from the serialised request, so a shared EncodingOutput mutated between
+   * calls is planned exactly as it will run.
+   */
+  public static final class Plan {
+    final String name;
+    final List<Node> nodes = new ArrayList<>();
+    final List<String> errors = new ArrayList<>();
+    private final Map<String, Node> created = new HashMap<>();
+    private final Map<String, Node> started = new HashMap<>();
+    private final Map<String, Node> finished = new HashMap<>();
+    private final Map<Thread, List<Node>> waitedFor = new HashMap<>();
+
+    Plan(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Add a node that depends on every recorded resource it references, and on every run the
+     * calling thread has already waited for, since the exercise can't get past that wait sooner.
+     */
+    private Node add(String endpoint, String label, Collection<String> ids) {
+      Node node = new Node(nodes.size(), endpoint, label);
+      Set<Node> deps = new LinkedHashSet<>();
+      for (String id : ids) {
+        Node dep = created.get(id);
+        if (dep == null) {
+          errors.add(node + " references " + id + ", which this run never created");
+        } else {
+          deps.add(dep);
+        }
+      }
+      deps.addAll(waitedFor.getOrDefault(Thread.currentThread(), List.of()));
+      node.deps.addAll(deps);
+      nodes.add(node);
+      return node;
+    }
+
+    /**
+     * Record one call and make up the result the exercise expects back.
+     */
+    synchronized JsonNode record(String method, List<String> segments, JsonNode body) {
+      String endpoint = endpoint(method, segments);
+      Set<String> ids = new LinkedHashSet<>();
+      String target = null;
+      for (String segment : segments) {
+        if (resourceId.matcher(segment).matches()) {
+          ids.add(segment);
+          target = segment;
+        }
+      }
+      String last = segments.isEmpty() ? "" : segments.get(segments.size() - 1);
+
+      if (method.equals("POST") && actions.contains(last)) {
+        return action(endpoint, last, target, ids);
+      }
+      if (method.equals("GET") && last.equals("status")) {
+        return status(endpoint, target);
+      }
+      if (!method.equals("POST")) {
+        ObjectNode result = json.createObjectNode();
+        result.put("id", target);
+        return result;
+      }
+
+      ObjectNode result = body != null && body.isObject()
+          ? ((ObjectNode) body).deepCopy()
+          : json.createObjectNode();
+      collectIds(result, ids);
+      Node node = add(endpoint, label(endpoint, result), ids);
+      int encodings = segments.indexOf("encodings");
+      if (encodings >= 0 && encodings + 1 < segments.size()) {
+        node.encodingId = segments.get(encodings + 1);
+      }
+      checkFields(node, result);
+      JsonNode outputs = result.path("outputs");
+      if (outputs.size() > 0) {
+        JsonNode output = outputs.get(0);
+        Node outputNode = created.get(output.path("outputId").asText(""));
+        node.outputId = outputNode == null ? "?" : outputNode.label;
+        node.outputPath = output.path("outputPath").asText("");
+        for (String field : fileNameFields) {
+          if (result.hasNonNull(field)) {
+            node.fileNames.add(requireFileName(result.get(field).asText(), node));
+          }
+        }
+        // segmented muxings fill a directory of their own
+        node.ownsDirectory = endpoint.contains(".muxings.") && node.fileNames.isEmpty();
+        if (outputs.size() > 1) {
+          errors.add(node + " has " + outputs.size() + " outputs, only the first is checked");
+        }
+      }
+      String id = UUID.randomUUID().toString();
+      created.put(id, node);
+      result.put("id", id);
+      return result;
+    }
+
+    private JsonNode action(String endpoint, String action, String target, Set<String> ids) {
+      Node node = add(endpoint, labelOf(target), ids);
+      if (action.equals("start") && target != null) {
+        for (Node configured : nodes) {
+          if (target.equals(configured.encodingId) && !node.deps.contains(configured)) {
+            node.deps.add(configured);
+          }
+        }
+        // muxings, sprites and thumbnails all write somewhere; an encoding with none of them
+        // would run for nothing
+        if (endpoint.equals("encoding.encodings.start") && node.deps.stream()
+            .noneMatch(n -> target.equals(n.encodingId) && n.outputPath != null)) {
+          errors.add("encoding " + labelOf(target) + " starts with nothing to write");
+        }
+        started.put(target, node);
+      }
+      ObjectNode result = json.createObjectNode();
+      result.put("id", target);
+      return result;
+    }
+
+    /**
+     * Every poll answers FINISHED. The first one for a started resource stands for the time it
+     * takes to run, recorded as "<resource>.run".
+     */
+    private JsonNode status(String endpoint, String target) {
+      Node start = started.get(target);
+      if (start == null) {
+        errors.add(endpoint + " polls " + labelOf(target) + " before it was started");
+      } else if (!finished.containsKey(target)) {
+        Node node = add(runEndpoint(endpoint), labelOf(target), List.of());
+        node.deps.add(start);
+        finished.put(target, node);
+        waitedFor.computeIfAbsent(Thread.currentThread(), t -> new ArrayList<>()).add(node);
+      }
+      ObjectNode result = json.createObjectNode();
+      result.put("status", "FINISHED");
+      result.put("progress", 100);
+      return result;
+    }
+
+    private void collectIds(JsonNode value, Set<String> ids) {
+      if (value.isTextual() && resourceId.matcher(value.asText()).matches()) {
+        ids.add(value.asText());
+      }
+      for (JsonNode child : value) {
+        collectIds(child, ids);
+      }
+    }
+
+    private void checkFields(Node node, JsonNode body) {
+      if (node.endpoint.equals("encoding.inputs.http.create")
+          && body.path("host").asText("").isEmpty()) {
+        errors.add(node + " has no host");
+      }
+      if (node.endpoint.equals("encoding.outputs.s3.create")
+          && body.path("bucketName").asText("").isEmpty()) {
+        errors.add(node + " has no bucket name");
+      }
+      for (JsonNode input : body.path("inputStreams")) {
+        String path = input.path("inputPath").asText("/");
+        if (!path.startsWith("/")) {
+          errors.add(node + " has a relative input path " + path);
+        }
+      }
+    }
+
+    private static String label(String endpoint, JsonNode body) {
+      for (String field : List.of("name", "manifestName", "filename", "host", "bucketName")) {
+        if (body.hasNonNull(field)) {
+          return body.get(field).asText();
+        }
+      }
+      return body.path("outputs").path(0).path("outputPath").asText(endpoint);
+    }
+
+    private String labelOf(String id) {
+      Node node = created.get(id);
+      return node == null ? String.valueOf(id) : node.label;
+    }
+
+    private String requireFileName(String fileName, Node node) {
+      if (fileName.isEmpty() || fileName.contains("/")) {
+        errors.add(node + " has an invalid file name '" + fileName + "'");
+      }
+      return fileName;
+    }
+
+    /**
+     * Check output-path collisions. Segment muxings own their whole directory; everything else
+     * owns its files.
+     */
+    public synchronized List<String> validate() {
+      List<String> problems = new ArrayList<>(errors);
+      Map<String, Node> directories = new HashMap<>();
+      Map<String, Node> files = new HashMap<>();
+      for (Node node : nodes) {
+        for (String target : node.targets()) {
+          Map<String, Node> claimed = target.endsWith("/") ? directories : files;
+          Node previous = claimed.putIfAbsent(target, node);
+          if (previous != null) {
+            problems.add(node + " writes " + target + " already written by " + previous);
+          }
+        }
+      }
+      for (Map.Entry<String, Node> file : files.entrySet()) {
+        String directory = file.getKey().substring(0, file.getKey().lastIndexOf('/') + 1);
+        Node owner = directories.get(directory);
+        if (owner != null && owner != file.getValue()) {
+          problems.add(file.getValue() + " writes " + file.getKey()
+              + " inside the segment directory of " + owner);
+        }
+      }
+      return problems;
+    }
+
+    /**
+     * Longest path through the graph, weighted by recorded per-endpoint latency. Endpoints with
+     * nothing recorded count as zero and are listed in the estimate.
+     */
+    public synchronized Estimate estimate(Map<String, Double> latenciesMs) {
+      double[] finish = new double[nodes.size()];
+      Node[] via = new Node[nodes.size()];
+      double sequential = 0.0;
+      Node last = null;
+      Set<String> unrecorded = new TreeSet<>();
+      for (Node node : nodes) {
+        Double latency = latenciesMs.get(node.endpoint);
+        if (latency == null) {
+          unrecorded.add(node.endpoint);
+          latency = 0.0;
+        }
+        double ready = 0.0;
+        for (Node dep : node.deps) {
+          if (finish[dep.index] > ready) {
+            ready = finish[dep.index];
+            via[node.index] = dep;
+          }
+        }
+        finish[node.index] = ready + latency;
+        sequential += latency;
+        if (last == null || finish[node.index] > finish[last.index]) {
+          last = node;
+        }
+      }
+      List<Node> path = new ArrayList<>();
+      for (Node node = last; node != null; node = via[node.index]) {
+        path.add(0, node);
+      }
+      return new Estimate(last == null ? 0.0 : finish[last.index], sequential, path, unrecorded);
+    }
+  }
+
+  /**
+   * Critical-path estimate, plus what the exercise costs when every call is made in order.
+   */
+  public static final class Estimate {
+    final double criticalPathMs;
+    final double sequentialMs;
+    final List<Node> criticalPath;
+    final Set<String> unrecorded;
+
+    Estimate(double criticalPathMs, double sequentialMs, List<Node> criticalPath,
+        Set<String> unrecorded) {
+      this.criticalPathMs = criticalPathMs;
+      this.sequentialMs = sequentialMs;
+      this.criticalPath = criticalPath;
+      this.unrecorded = unrecorded;
+    }
+  }
+
+  /**
+   * Stands in for the HTTP client during a dry run, answering in the API's response envelope.
+   */
+  static final class Recorder implements Client {
+    final Plan plan;
+
+    Recorder(Plan plan) {
+      this.plan = plan;
+    }
+
+    @Override
+    public Response execute(Request request, Request.Options options) throws IOException {
+      byte[] body = request.body();
+      JsonNode parsed = body == null || body.length == 0 ? null : json.readTree(body);
+      JsonNode result = plan.record(request.httpMethod().name(), segments(request.url()), parsed);
+      ObjectNode envelope = json.createObjectNode();
+      envelope.put("requestId", "dry-run");
+      envelope.put("status", "SUCCESS");
+      envelope.putObject("data").set("result", result);
+      Map<String, Collection<String>> headers =
+          Map.of("Content-Type", List.of("application/json"));
+      return Response.builder().request(request).status(200).reason("OK").headers(headers)
+          .body(json.writeValueAsBytes(envelope)).build();
+    }
+  }
+
+  /**
+   * Times every real API call and folds it into a running mean per endpoint in the properties
+   * file loadLatencies reads. The time from a start until the first poll that sees the resource
+   * FINISHED is recorded as "<resource>.run".
+   */
+  static final class LatencyRecorder implements Client {
+    private final Client delegate = new Client.Default(null, null);
+    private final Path file;
+    private final Map<String, Long> startedAt = new HashMap<>();
+
+    LatencyRecorder(Path file) {
+      this.file = file;
+    }
+
+    @Override
+    public Response execute(Request request, Request.Options options) throws IOException {
+      List<String> segments = segments(request.url());
+      String endpoint = endpoint(request.httpMethod().name(), segments);
+      String last = segments.isEmpty() ? "" : segments.get(segments.size() - 1);
+      String target = segments.size() > 1 ? segments.get(segments.size() - 2) : null;
+
+      long started = System.nanoTime();
+      Response response = delegate.execute(request, options);
+      byte[] body = new byte[0];
+      if (response.body() != null) {
+        try (InputStream in = response.body().asInputStream()) {
+          body = in.readAllBytes();
+        }
+      }
+      long now = System.nanoTime();
+      record(endpoint, (now - started) / 1_000_000.0);
+
+      boolean ok = response.status() / 100 == 2;
+      if (ok && last.equals("start")) {
+        synchronized (startedAt) {
+          startedAt.put(target, started);
+        }
+      } else if (ok && last.equals("status") && json.readTree(body)
+          .path("data").path("result").path("status").asText().equals("FINISHED")) {
+        Long start;
+        synchronized (startedAt) {
+          start = startedAt.remove(target);
+        }
+        if (start != null) {
+          record(runEndpoint(endpoint), (now - start) / 1_000_000.0);
+        }
+      }
+      return response.toBuilder().body(body).build();
+    }
+
+    private synchronized void record(String endpoint, double ms) throws IOException {
+      Properties properties = new Properties();
+      if (Files.exists(file)) {
+        try (Reader reader = Files.newBufferedReader(file)) {
+          properties.load(reader);
+        }
+      }
+      long samples = Long.parseLong(properties.getProperty(endpoint + ".samples", "0")) + 1;
+      double mean = Double.parseDouble(properties.getProperty(endpoint, "0"));
+      mean += (ms - mean) / samples;
+      properties.setProperty(endpoint, String.format("%.1f", mean));
+      properties.setProperty(endpoint + ".samples", Long.toString(samples));
+      try (Writer writer = Files.newBufferedWriter(file)) {
+        properties.store(writer, "mean latency in ms per endpoint, recorded by DryRunPlanner");
+      }
+    }
+  }
+
+  private static String normalize(String path) {
+    String normalized = path.replaceAll("/+", "/");
+    return normalized.endsWith("/") ? normalized.substring(0, normalized.length() - 1) : normalized;
+  }
+
+  private static void deleteTree(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> {
+        try {
+          Files.delete(path);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Load recorded latencies, one "endpoint=milliseconds" per line.
+   */
+  static Map<String, Double> loadLatencies(String file) throws IOException {
+    Map<String, Double> latencies = new HashMap<>();
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+      properties.load(reader);
+    }
+    for (String endpoint : properties.stringPropertyNames()) {
+      if (!endpoint.endsWith(".samples")) {
+        latencies.put(endpoint, Double.parseDouble(properties.getProperty(endpoint).trim()));
+      }
+    }
+    return latencies;
+  }
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+    int at = 0;
+    String latenciesFile = null;
+    if (args.length > 1 && args[0].equals("-l")) {
+      latenciesFile = args[1];
+      at = 2;
+    }
+    if (args.length <= at) {
+      throw new RuntimeException(
+          "Usage: DryRunPlanner [-l latencies.properties] <exercise class> [exercise args...]");
+    }
+    final String exercise = args[at];
+    final String[] exerciseArgs = Arrays.copyOfRange(args, at + 1, args.length);
+
+    // run the exercise as written, with every API call answered by the recorder
+    Plan plan = new Plan(exercise);
+    scratch = Files.createTempDirectory("dry-run");
+    recording = new Recorder(plan);
+    long started = System.nanoTime();
+    try {
+      Class.forName(exercise).getMethod("main", String[].class).invoke(null, (Object) exerciseArgs);
+    } catch (InvocationTargetException e) {
+      plan.errors.add("exercise threw " + e.getCause());
+    } finally {
+      recording = null;
+      deleteTree(scratch);
+      scratch = null;
+    }
+    double tookMs = (System.nanoTime() - started) / 1_000_000.0;
+
+    List<String> problems = plan.validate();
+    System.out.printf("%s: %d API calls recorded in %.2f ms%n", exercise, plan.nodes.size(),
+        tookMs);
+    for (String problem : problems) {
+      System.out.println("  ERROR " + problem);
+    }
+
+    if (latenciesFile == null) {
+      System.out.println("  no estimate without recorded latencies: run the exercise with "
+          + "DRY_RUN_LATENCIES=<file> set, then pass -l <file>");
+    } else {
+      Estimate estimate = plan.estimate(loadLatencies(latenciesFile));
+      System.out.printf("  critical path %.1f s (as written, sequentially: %.1f s)%n",
+          estimate.criticalPathMs / 1000.0, estimate.sequentialMs / 1000.0);
+      if (!estimate.unrecorded.isEmpty()) {
+        System.out.println("  nothing recorded for " + estimate.unrecorded + ", counted as 0");
+      }
+      for (Node node : estimate.criticalPath) {
+        System.out.println("    " + node);
+      }
+    }
+    if (!problems.isEmpty()) {
+      System.exit(1);
+    }
+  }
+}
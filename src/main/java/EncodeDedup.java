@@ -0,0 +1,409 @@
+/**
+ * Encode Dedup
+ *
+ * Fingerprints an encoding job (input identity plus every setting that changes the output) and
+ * keeps a local index of completed jobs, so resubmitting the same source with the same settings
+ * returns the existing output instead of running a new Encoding. Identical jobs that are still
+ * running are merged: callers in the same JVM share one future, other processes wait on a lock
+ * file and then pick the result up from the index.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+
+public class EncodeDedup {
+  /**
+   * Bunch of variables
+   */
+  private static final String indexFileName = "completed.tsv";
+  private static final Duration probeTimeout = Duration.ofSeconds(10);
+  private static final Map<Path, EncodeDedup> opened = new ConcurrentHashMap<>();
+
+  private final Path directory;
+  private final Path indexFile;
+  private final Map<String, Result> completed = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<Result>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Where a finished job's output lives.
+   */
+  public static final class Result {
+    public final String outputLocation;
+    public final String manifest;
+    public final String encodingId;
+
+    public Result(String outputLocation, String manifest, String encodingId) {
+      this.outputLocation = outputLocation;
+      this.manifest = manifest;
+      this.encodingId = encodingId;
+    }
+
+    @Override
+    public String toString() {
+      return outputLocation + (manifest == null ? "" : "/" + manifest)
+          + " (encoding " + encodingId + ")";
+    }
+  }
+
+  /**
+   * Canonical description of a job. Fields are sorted by name before hashing, so the order they
+   * are added in doesn't matter.
+   */
+  public static final class Fingerprint {
+    private final Map<String, String> fields = new TreeMap<>();
+    private boolean identified = true;
+
+    public Fingerprint with(String name, Object value) {
+      fields.put(name, String.valueOf(value));
+      return this;
+    }
+
+    /**
+     * Identify the source by size and ETag (or Last-Modified) with a HEAD request. If the source
+     * can't be identified the job isn't cacheable, since a changed file at the same path would
+     * otherwise be served from a stale result.
+     */
+    public Fingerprint input(String hostName, String inputPath) {
+      with("input.host", hostName);
+      with("input.path", inputPath);
+      if (DryRunPlanner.isRecording()) {
+        // no network during a dry run; the index is thrown away anyway
+        with("input.version", "dry-run");
+        return this;
+      }
+      try {
+        HttpClient http = HttpClient.newBuilder().connectTimeout(probeTimeout).build();
+        HttpResponse<Void> response = http.send(
+            HttpRequest.newBuilder(URI.create("https://" + hostName + inputPath))
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .timeout(probeTimeout)
+                .build(),
+            HttpResponse.BodyHandlers.discarding());
+        String length = response.headers().firstValue("Content-Length").orElse(null);
+        String version = response.headers().firstValue("ETag")
+            .orElse(response.headers().firstValue("Last-Modified").orElse(null));
+        if (response.statusCode() != 200 || length == null || version == null) {
+          identified = false;
+        } else {
+          with("input.size", length);
+          with("input.version", version);
+        }
+      } catch (IOException e) {
+        identified = false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        identified = false;
+      }
+      return this;
+    }
+
+    public boolean isCacheable() {
+      return identified;
+    }
+
+    /**
+     * SHA-256 over the sorted fields, or null if the job isn't cacheable.
+     */
+    public String hash() {
+      if (!identified) {
+        return null;
+      }
+      StringBuilder canonical = new StringBuilder();
+      for (Map.Entry<String, String> field : fields.entrySet()) {
+        canonical.append(field.getKey()).append('=').append(field.getValue()).append('\n');
+      }
+      try {
+        byte[] digest = MessageDigest.getInstance("SHA-256")
+            .digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+          hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+      } catch (NoSuchAlgorithmException e) {
+        throw new RuntimeException("SHA-256 not available", e);
+      }
+    }
+  }
+
+  private EncodeDedup(Path directory) throws IOException {
+    this.directory = directory;
+    this.indexFile = directory.resolve(indexFileName);
+    Files.createDirectories(directory);
+    reload();
+  }
+
+  /**
+   * Open the index in ENCODE_DEDUP_DIR, or ~/.macmovin/dedup if that isn't set. A dry run gets an
+   * empty index in its scratch dir, so it neither stops at a finished job nor records its made-up
+   * ids, and the index goes away with the dry run.
+   */
+  public static EncodeDedup open() throws IOException {
+    if (DryRunPlanner.isRecording()) {
+      return open(DryRunPlanner.scratchDirectory().resolve("dedup"));
+    }
+    String configured = System.getenv("ENCODE_DEDUP_DIR");
+    Path directory = configured != null
+        ? Paths.get(configured)
+        : Paths.get(System.getProperty("user.home"), ".macmovin", "dedup");
+    return open(directory);
+  }
+
+  /**
+   * One instance per directory, so in-flight merging works across callers in this JVM.
+   */
+  public static EncodeDedup open(Path directory) throws IOException {
+    Path key = directory.toAbsolutePath().normalize();
+    EncodeDedup dedup = opened.get(key);
+    if (dedup == null) {
+      synchronized (opened) {
+        dedup = opened.get(key);
+        if (dedup == null) {
+          dedup = new EncodeDedup(key);
+          opened.put(key, dedup);
+        }
+      }
+    }
+    return dedup;
+  }
+
+  /**
+   * Pick up entries other processes have appended since we last looked.
+   */
+  private void reload() throws IOException {
+    if (!Files.exists(indexFile)) {
+      return;
+    }
+    List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+    for (String line : lines) {
+      String[] columns = line.split("\t", -1);
+      if (columns.length < 5) {
+        continue;
+      }
+      completed.put(columns[0], new Result(columns[1], columns[2].isEmpty() ? null : columns[2],
+          columns[3]));
+    }
+  }
+
+  /**
+   * The completed result for this fingerprint, or null if we haven't encoded it yet.
+   */
+  public Result lookup(Fingerprint fingerprint) throws IOException {
+    String hash = fingerprint.hash();
+    if (hash == null) {
+      return null;
+    }
+    Result result = completed.get(hash);
+    if (result == null) {
+      reload();
+      result = completed.get(hash);
+    }
+    return result;
+  }
+
+  /**
+   * Remember a finished job. The append is a single write under a lock so concurrent writers
+   * never interleave lines.
+   */
+  public synchronized void record(Fingerprint fingerprint, Result result) throws IOException {
+    String hash = fingerprint.hash();
+    if (hash == null) {
+      return;
+    }
+    String line = String.join("\t", hash, result.outputLocation,
+        result.manifest == null ? "" : result.manifest, result.encodingId,
+        Instant.now().toString()) + "\n";
+    try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      // released when the channel closes
+      channel.lock();
+      channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+    }
+    completed.put(hash, result);
+  }
+
+  /**
+   * The right to run one job. Either previous() is set and there is nothing to do, or this
+   * caller holds the job until complete() or close(); identical jobs wait for it meanwhile.
+   */
+  public final class Claim implements AutoCloseable {
+    private final String hash;
+    private final Fingerprint fingerprint;
+    private final Result previous;
+    private final CompletableFuture<Result> future;
+    private final FileChannel lockChannel;
+    private boolean closed;
+
+    private Claim(String hash, Fingerprint fingerprint, Result previous,
+        CompletableFuture<Result> future, FileChannel lockChannel) {
+      this.hash = hash;
+      this.fingerprint = fingerprint;
+      this.previous = previous;
+      this.future = future;
+      this.lockChannel = lockChannel;
+      this.closed = future == null;
+    }
+
+    /**
+     * The existing result if this job was already done, otherwise null.
+     */
+    public Result previous() {
+      return previous;
+    }
+
+    /**
+     * Where this job should write: base plus the first 16 hex digits of the fingerprint, or just
+     * base if the job isn't cacheable. A job with different settings gets a different directory,
+     * so it can never overwrite the output an index entry points at.
+     */
+    public String outputPath(String base) {
+      return hash == null ? base : base + "/" + hash.substring(0, 16);
+    }
+
+    /**
+     * Record the finished job and hand the result to anyone waiting on it.
+     */
+    public void complete(Result result) throws IOException {
+      if (hash != null) {
+        record(fingerprint, result);
+      }
+      if (closed) {
+        return;
+      }
+      try {
+        release();
+      } finally {
+        future.complete(result);
+      }
+    }
+
+    /**
+     * Give the job up without a result; the next waiter will run it instead.
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      try {
+        release();
+      } finally {
+        future.completeExceptionally(new IllegalStateException("Job abandoned"));
+      }
+    }
+
+    /**
+     * Drop the file lock and the in-flight entry before waking any waiter, so a waiter that
+     * retries never finds either still held.
+     */
+    private void release() throws IOException {
+      closed = true;
+      try {
+        if (lockChannel != null) {
+          lockChannel.close();
+        }
+      } finally {
+        inFlight.remove(hash, future);
+      }
+    }
+  }
+
+  /**
+   * Claim a job, waiting for any identical job that is already running here or in another
+   * process. Non-cacheable jobs always get a fresh claim.
+   */
+  public Claim claim(Fingerprint fingerprint) throws IOException {
+    String hash = fingerprint.hash();
+    if (hash == null) {
+      return new Claim(null, fingerprint, null, null, null);
+    }
+    while (true) {
+      Result done = lookup(fingerprint);
+      if (done != null) {
+        return new Claim(hash, fingerprint, done, null, null);
+      }
+
+      CompletableFuture<Result> mine = new CompletableFuture<>();
+      CompletableFuture<Result> running = inFlight.putIfAbsent(hash, mine);
+      if (running != null) {
+        try {
+          return new Claim(hash, fingerprint, running.join(), null, null);
+        } catch (CompletionException e) {
+          // whoever had it gave up, so try to take it ourselves
+          continue;
+        }
+      }
+
+      // the lock is released when the channel is closed or the process dies
+      FileChannel lockChannel = FileChannel.open(directory.resolve(hash + ".lock"),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      try {
+        lockChannel.lock();
+        done = lookup(fingerprint);
+      } catch (OverlappingFileLockException e) {
+        // a claim in this JVM is still letting go of the lock; step back and start over
+        lockChannel.close();
+        inFlight.remove(hash, mine);
+        mine.completeExceptionally(e);
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for " + hash + ".lock");
+        }
+        continue;
+      } catch (IOException e) {
+        lockChannel.close();
+        inFlight.remove(hash, mine);
+        mine.completeExceptionally(e);
+        throw e;
+      }
+      if (done != null) {
+        // another process finished it while we waited for the lock
+        lockChannel.close();
+        inFlight.remove(hash, mine);
+        mine.complete(done);
+        return new Claim(hash, fingerprint, done, null, null);
+      }
+      return new Claim(hash, fingerprint, null, mine, lockChannel);
+    }
+  }
+
+  /**
+   * Run the encode unless an identical job has already finished or is already running, in which
+   * case return (or wait for) that job's result instead.
+   */
+  public Result run(Fingerprint fingerprint, Callable<Result> encode) throws Exception {
+    try (Claim claim = claim(fingerprint)) {
+      if (claim.previous() != null) {
+        return claim.previous();
+      }
+      Result result = encode.call();
+      claim.complete(result);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,556 @@
+/**
+ * Encoding Scheduler
+ *
+ * Sits in front of encodings.start so a fixed number of concurrent-encoding slots goes to the
+ * right jobs: priority classes first, fair share between tenants inside a class, earliest
+ * deadline first inside a tenant's class. Waiting BULK jobs age up to STANDARD, never to URGENT,
+ * and a job that would miss its deadline if it waited any longer competes as STANDARD straight
+ * away, ahead of everything in that class that isn't at risk; URGENT work is never overtaken.
+ * Whether a job is at risk depends on its expected runtime: its own if it was given one,
+ * otherwise the 75th percentile of recently finished jobs, otherwise ten minutes. Slots are
+ * refilled as running encodings reach FINISHED, ERROR or CANCELED; status polls and starts happen
+ * outside the scheduler's lock, so a slow API call never blocks submit() or metrics().
+ *
+ * The exercises start their encodings through EncodingScheduler.start(). With
+ * ENCODING_SCHEDULER_SPOOL=<file> set they append a job line there instead of starting, and keep
+ * polling until the scheduler has run it:
+ *
+ * Usage: tail -n +1 -F <spool file> | java EncodingScheduler <slots>
+ * one job per line: <tenant> <URGENT|STANDARD|BULK> <encoding id> [deadline ISO-8601 | -]
+ *   [expected runtime ISO-8601 | -] [start request JSON]
+ */
+
+import com.bitmovin.api.sdk.BitmovinApi;
+import com.bitmovin.api.sdk.model.*;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+public class EncodingScheduler {
+  /**
+   * Bunch of variables
+   */
+  private static BitmovinApi bitmovinApi;
+  private static String myApiKey;
+  private static final Duration defaultPollInterval = Duration.ofSeconds(5);
+  private static final Duration defaultExpectedRuntime = Duration.ofMinutes(10);
+  private static final Duration defaultAging = Duration.ofMinutes(30);
+  private static final int waitSamples = 1024;
+  private static final double runtimePercentile = 75.0;
+  private static final ObjectMapper json = new ObjectMapper()
+      .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+      .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+  /**
+   * Priority classes, highest first.
+   */
+  public enum Priority {
+    URGENT, STANDARD, BULK
+  }
+
+  /**
+   * A queued or running job. submit() configures and starts the encoding and returns its id.
+   */
+  public static final class Job {
+    final long sequence;
+    final String tenant;
+    final Priority priority;
+    final Instant deadline;
+    final Duration expectedRuntime;
+    final Callable<String> submit;
+    final Instant enqueuedAt;
+    final CompletableFuture<Status> done = new CompletableFuture<>();
+    Instant startedAt;
+    String encodingId;
+
+    Job(long sequence, String tenant, Priority priority, Instant deadline,
+        Duration expectedRuntime, Callable<String> submit, Instant enqueuedAt) {
+      this.sequence = sequence;
+      this.tenant = tenant;
+      this.priority = priority;
+      this.deadline = deadline;
+      this.expectedRuntime = expectedRuntime;
+      this.submit = submit;
+      this.enqueuedAt = enqueuedAt;
+    }
+
+    /**
+     * Class the job competes in: one step up for every aging interval it has waited, or straight
+     * up once it is at risk, but never past STANDARD, so neither aged nor late bulk work can
+     * crowd out jobs that were submitted as URGENT.
+     */
+    Priority effectivePriority(Instant now, Duration aging, boolean atRisk) {
+      int ceiling = Math.min(priority.ordinal(), Priority.STANDARD.ordinal());
+      if (atRisk) {
+        return Priority.values()[ceiling];
+      }
+      long steps = Duration.between(enqueuedAt, now).toMillis() / Math.max(1, aging.toMillis());
+      return Priority.values()[(int) Math.max(ceiling, priority.ordinal() - steps)];
+    }
+
+    /**
+     * True if starting later than now would likely miss the deadline.
+     */
+    boolean atRisk(Instant now, Duration runtime) {
+      return deadline != null && now.plus(runtime).isAfter(deadline);
+    }
+  }
+
+  private static final Comparator<Job> earliestDeadlineFirst =
+      Comparator.comparing((Job job) -> job.deadline == null ? Instant.MAX : job.deadline)
+          .thenComparingLong(job -> job.sequence);
+
+  /**
+   * Order inside one tenant: effective class, then at-risk, then earliest deadline. Depends on
+   * the time, since jobs age and become at risk while they wait, so it is applied when picking
+   * rather than kept in a PriorityQueue.
+   */
+  private Comparator<Job> tenantOrder(Instant now) {
+    return Comparator.comparing((Job job) -> classOf(job, now))
+        .thenComparing(job -> !atRisk(job, now))
+        .thenComparing(earliestDeadlineFirst);
+  }
+
+  private boolean atRisk(Job job, Instant now) {
+    Duration runtime = job.expectedRuntime != null
+        ? job.expectedRuntime
+        : observedRuntime != null ? observedRuntime : expectedRuntime;
+    return job.atRisk(now, runtime);
+  }
+
+  private Priority classOf(Job job, Instant now) {
+    return job.effectivePriority(now, aging, atRisk(job, now));
+  }
+
+  private final int slots;
+  private final Function<String, Status> statusOf;
+  private final Duration pollInterval;
+  private final Duration expectedRuntime;
+  private final Duration aging;
+  private final AtomicLong sequence = new AtomicLong();
+  private final Map<String, List<Job>> queues = new LinkedHashMap<>();
+  private final Map<String, Integer> runningPerTenant = new HashMap<>();
+  private final Map<String, Long> lastServed = new HashMap<>();
+  private final List<Job> running = new ArrayList<>();
+  private final Map<Priority, Deque<Long>> waits = new EnumMap<>(Priority.class);
+  private final Deque<Long> runtimes = new ArrayDeque<>();
+  private Duration observedRuntime;
+  private long served;
+  private long finished;
+  private long failed;
+  private volatile boolean stopped;
+
+  public EncodingScheduler(int slots, Function<String, Status> statusOf, Duration pollInterval,
+      Duration expectedRuntime, Duration aging) {
+    if (slots <= 0) {
+      throw new IllegalArgumentException("Need at least one slot, got " + slots);
+    }
+    this.slots = slots;
+    this.statusOf = statusOf;
+    this.pollInterval = pollInterval;
+    this.expectedRuntime = expectedRuntime;
+    this.aging = aging;
+    for (Priority priority : Priority.values()) {
+      waits.put(priority, new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * Queue a job. The future completes with the encoding's final status.
+   */
+  public CompletableFuture<Status> submit(String tenant, Priority priority, Instant deadline,
+      Callable<String> start) {
+    return submit(tenant, priority, deadline, null, start);
+  }
+
+  /**
+   * Queue a job that is expected to take expectedRuntime once started; null means use what
+   * recently finished jobs took.
+   */
+  public synchronized CompletableFuture<Status> submit(String tenant, Priority priority,
+      Instant deadline, Duration expectedRuntime, Callable<String> start) {
+    Job job = new Job(sequence.getAndIncrement(), tenant, priority, deadline, expectedRuntime,
+        start, Instant.now());
+    queues.computeIfAbsent(tenant, t -> new ArrayList<>()).add(job);
+    notifyAll();
+    return job.done;
+  }
+
+  /**
+   * Pick the next job to start, or null if nothing is queued: each tenant's best job by
+   * tenantOrder, then the best of those across tenants.
+   */
+  private Job next(Instant now) {
+    Comparator<Job> order = tenantOrder(now);
+    Job best = null;
+    for (List<Job> queue : queues.values()) {
+      Job head = queue.isEmpty() ? null : Collections.min(queue, order);
+      if (head != null && (best == null || before(head, best, now))) {
+        best = head;
+      }
+    }
+    if (best != null) {
+      queues.get(best.tenant).remove(best);
+    }
+    return best;
+  }
+
+  /**
+   * Ordering between two tenants' head jobs.
+   */
+  private boolean before(Job a, Job b, Instant now) {
+    int classA = classOf(a, now).ordinal();
+    int classB = classOf(b, now).ordinal();
+    if (classA != classB) {
+      return classA < classB;
+    }
+    boolean riskA = atRisk(a, now);
+    boolean riskB = atRisk(b, now);
+    if (riskA != riskB) {
+      return riskA;
+    }
+    if (riskA) {
+      return earliestDeadlineFirst.compare(a, b) < 0;
+    }
+    // fair share: fewest running slots, then whoever was served longest ago
+    int runningA = runningPerTenant.getOrDefault(a.tenant, 0);
+    int runningB = runningPerTenant.getOrDefault(b.tenant, 0);
+    if (runningA != runningB) {
+      return runningA < runningB;
+    }
+    long servedA = lastServed.getOrDefault(a.tenant, -1L);
+    long servedB = lastServed.getOrDefault(b.tenant, -1L);
+    if (servedA != servedB) {
+      return servedA < servedB;
+    }
+    return a.sequence < b.sequence;
+  }
+
+  /**
+   * Free slots whose encodings are done, then fill every free slot. Slots are claimed under the
+   * lock, but the status polls and starts are API calls and run outside it.
+   */
+  void tick() {
+    List<Job> polled = new ArrayList<>();
+    synchronized (this) {
+      for (Job job : running) {
+        // a job still being started has no encoding id yet
+        if (job.encodingId != null) {
+          polled.add(job);
+        }
+      }
+    }
+    Map<Job, Status> ended = new HashMap<>();
+    for (Job job : polled) {
+      try {
+        Status status = statusOf.apply(job.encodingId);
+        if (status == Status.FINISHED || status == Status.ERROR || status == Status.CANCELED) {
+          ended.put(job, status);
+        }
+      } catch (RuntimeException e) {
+        // transient API trouble, try again next tick
+      }
+    }
+
+    List<Job> starting = new ArrayList<>();
+    synchronized (this) {
+      Instant now = Instant.now();
+      for (Map.Entry<Job, Status> end : ended.entrySet()) {
+        if (running.remove(end.getKey())) {
+          release(end.getKey());
+          if (end.getValue() == Status.FINISHED) {
+            finished++;
+            recordRuntime(Duration.between(end.getKey().startedAt, now));
+          } else {
+            failed++;
+          }
+        }
+      }
+      while (running.size() < slots) {
+        Job job = next(now);
+        if (job == null) {
+          break;
+        }
+        job.startedAt = now;
+        recordWait(job);
+        runningPerTenant.merge(job.tenant, 1, Integer::sum);
+        lastServed.put(job.tenant, served++);
+        running.add(job);
+        starting.add(job);
+      }
+    }
+    for (Map.Entry<Job, Status> end : ended.entrySet()) {
+      end.getKey().done.complete(end.getValue());
+    }
+
+    for (Job job : starting) {
+      String encodingId;
+      try {
+        encodingId = job.submit.call();
+      } catch (Exception e) {
+        synchronized (this) {
+          running.remove(job);
+          release(job);
+          failed++;
+        }
+        job.done.completeExceptionally(e);
+        continue;
+      }
+      synchronized (this) {
+        job.encodingId = encodingId;
+      }
+    }
+  }
+
+  private void release(Job job) {
+    runningPerTenant.merge(job.tenant, -1, Integer::sum);
+  }
+
+  private void recordWait(Job job) {
+    Deque<Long> samples = waits.get(job.priority);
+    samples.addLast(Duration.between(job.enqueuedAt, job.startedAt).toMillis());
+    if (samples.size() > waitSamples) {
+      samples.removeFirst();
+    }
+  }
+
+  /**
+   * Keep the expected-runtime estimate at the chosen percentile of recent finished jobs, erring
+   * on the long side so deadlines are flagged early rather than late.
+   */
+  private void recordRuntime(Duration runtime) {
+    runtimes.addLast(runtime.toMillis());
+    if (runtimes.size() > waitSamples) {
+      runtimes.removeFirst();
+    }
+    List<Long> sorted = new ArrayList<>(runtimes);
+    Collections.sort(sorted);
+    observedRuntime = Duration.ofMillis((long) percentile(sorted, runtimePercentile));
+  }
+
+  /**
+   * Run ticks until stop() is called.
+   */
+  public void run() throws InterruptedException {
+    while (!stopped) {
+      tick();
+      synchronized (this) {
+        wait(pollInterval.toMillis());
+      }
+    }
+  }
+
+  public synchronized void stop() {
+    stopped = true;
+    notifyAll();
+  }
+
+  /**
+   * Queue depth per class and tenant, slot usage and wait times over the recent starts.
+   */
+  public synchronized String metrics() {
+    StringBuilder out = new StringBuilder();
+    Map<Priority, Integer> depth = new EnumMap<>(Priority.class);
+    for (List<Job> queue : queues.values()) {
+      for (Job job : queue) {
+        depth.merge(job.priority, 1, Integer::sum);
+      }
+    }
+    out.append(String.format("slots %d/%d busy, %d finished, %d failed, expected runtime %.1f min"
+        + "%s%n", running.size(), slots, finished, failed,
+        (observedRuntime != null ? observedRuntime : expectedRuntime).toMillis() / 60000.0,
+        observedRuntime != null ? "" : " (default)"));
+    for (Priority priority : Priority.values()) {
+      List<Long> sorted = new ArrayList<>(waits.get(priority));
+      Collections.sort(sorted);
+      out.append(String.format("  %-8s queued %4d  wait avg %6.1f s  p95 %6.1f s  max %6.1f s%n",
+          priority, depth.getOrDefault(priority, 0),
+          sorted.stream().mapToLong(Long::longValue).average().orElse(0.0) / 1000.0,
+          percentile(sorted, 95.0) / 1000.0, percentile(sorted, 100.0) / 1000.0));
+    }
+    for (Map.Entry<String, List<Job>> queue : queues.entrySet()) {
+      out.append(String.format("  tenant %-12s queued %4d  running %d%n", queue.getKey(),
+          queue.getValue().size(), runningPerTenant.getOrDefault(queue.getKey(), 0)));
+    }
+    return out.toString();
+  }
+
+  private static double percentile(List<Long> sorted, double percentile) {
+    if (sorted.isEmpty()) {
+      return 0.0;
+    }
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+    return sorted.get(Math.min(sorted.size(), Math.max(1, rank)) - 1);
+  }
+
+  /**
+   * Start an encoding the exercises have configured, or hand it to a scheduler. With
+   * ENCODING_SCHEDULER_SPOOL set, a job line is appended to that file instead, with tenant, class,
+   * deadline and expected runtime taken from ENCODING_TENANT (default: user name),
+   * ENCODING_PRIORITY (default STANDARD), ENCODING_DEADLINE and ENCODING_EXPECTED_RUNTIME; the
+   * caller keeps polling the encoding's status and sees it run once it gets a slot. A dry run
+   * always starts directly, so the planner sees the start.
+   */
+  public static void start(BitmovinApi bitmovinApi, String encodingId,
+      StartEncodingRequest request) {
+    String spool = System.getenv("ENCODING_SCHEDULER_SPOOL");
+    if (spool == null || DryRunPlanner.isRecording()) {
+      bitmovinApi.encoding.encodings.start(encodingId, request);
+      return;
+    }
+    String tenant = System.getenv("ENCODING_TENANT") != null
+        ? System.getenv("ENCODING_TENANT")
+        : System.getProperty("user.name");
+    String priority = System.getenv("ENCODING_PRIORITY") != null
+        ? System.getenv("ENCODING_PRIORITY")
+        : Priority.STANDARD.name();
+    String deadline = System.getenv("ENCODING_DEADLINE");
+    String runtime = System.getenv("ENCODING_EXPECTED_RUNTIME");
+    // catch mistakes here rather than in the scheduler
+    if (tenant.isEmpty() || tenant.matches(".*\\s.*")) {
+      throw new RuntimeException("Bad ENCODING_TENANT: '" + tenant + "'");
+    }
+    Priority.valueOf(priority);
+    if (deadline != null) {
+      Instant.parse(deadline);
+    }
+    if (runtime != null) {
+      Duration.parse(runtime);
+    }
+    try {
+      String line = String.join(" ", tenant, priority, encodingId,
+          deadline != null ? deadline : "-", runtime != null ? runtime : "-",
+          json.writeValueAsString(request)) + "\n";
+      try (FileChannel channel = FileChannel.open(Paths.get(spool), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+        // released when the channel closes
+        channel.lock();
+        channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Could not queue encoding " + encodingId + " in " + spool, e);
+    }
+    System.out.println("Queued encoding " + encodingId + " in " + spool);
+  }
+
+  /**
+   * Get a variable from the environment and throw exception if it doesn't exist.
+   */
+  private static String macGetEnv(String name) throws RuntimeException {
+    String value = System.getenv(name);
+    if (value == null) {
+      throw new RuntimeException("Can't get "+name);
+    }
+    return value;
+  }
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      throw new RuntimeException("Usage: EncodingScheduler <slots>");
+    }
+    final int slots = Integer.parseInt(args[0]);
+
+    // get some config stuff from environment variables.
+    myApiKey = macGetEnv("BITMOVIN_API_KEY");
+
+    // create API
+    bitmovinApi = BitmovinApi.builder().withApiKey(myApiKey).build();
+
+    EncodingScheduler scheduler = new EncodingScheduler(slots,
+        encodingId -> bitmovinApi.encoding.encodings.status(encodingId).getStatus(),
+        defaultPollInterval, defaultExpectedRuntime, defaultAging);
+    Thread loop = new Thread(() -> {
+      try {
+        scheduler.run();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "scheduler");
+    loop.start();
+
+    // report while stdin is still open (a tailed spool file never closes)
+    Thread report = new Thread(() -> {
+      try {
+        while (true) {
+          Thread.sleep(defaultPollInterval.toMillis() * 6);
+          System.out.print(scheduler.metrics());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "metrics");
+    report.setDaemon(true);
+    report.start();
+
+    // queue configured-but-not-started encodings from stdin
+    List<CompletableFuture<Status>> jobs = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.trim().split("\\s+", 6);
+        if (fields.length < 3) {
+          continue;
+        }
+        final String encodingId = fields[2];
+        final StartEncodingRequest request;
+        final Priority priority;
+        final Instant deadline;
+        final Duration runtime;
+        try {
+          priority = Priority.valueOf(fields[1]);
+          deadline = fields.length > 3 && !fields[3].equals("-") ? Instant.parse(fields[3]) : null;
+          runtime = fields.length > 4 && !fields[4].equals("-") ? Duration.parse(fields[4]) : null;
+          request = fields.length > 5
+              ? json.readValue(fields[5], StartEncodingRequest.class)
+              : new StartEncodingRequest();
+        } catch (IOException | RuntimeException e) {
+          System.err.println("Skipping bad job line (" + e.getMessage() + "): " + line);
+          continue;
+        }
+        jobs.add(scheduler.submit(fields[0], priority, deadline, runtime, () -> {
+          bitmovinApi.encoding.encodings.start(encodingId, request);
+          return encodingId;
+        }));
+      }
+    }
+
+    // wait for everything to be done
+    CompletableFuture<Void> all = CompletableFuture.allOf(jobs.toArray(new CompletableFuture[0]));
+    try {
+      all.join();
+    } catch (RuntimeException e) {
+      // failures are counted in the metrics
+    }
+    report.interrupt();
+    System.out.print(scheduler.metrics());
+    scheduler.stop();
+    loop.join();
+  }
+}
@@ -0,0 +1,355 @@
+/**
+ * Fast Start MP4
+ *
+ * Moves the moov box of a progressive MP4 in front of the mdat so playback can start before the
+ * whole file has downloaded. Only the moov is read into memory; everything else is streamed
+ * file-to-file with FileChannel.transferTo. Chunk offsets (stco/co64) are shifted to match, and
+ * stco tables are widened to co64 if the shift pushes an offset past 4 GiB.
+ *
+ * Usage: java FastStartMp4 <in.mp4> [out.mp4]   (rewrites in place if out is omitted)
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongUnaryOperator;
+
+public class FastStartMp4 {
+  /**
+   * Bunch of variables
+   */
+  private static final long maxMoovBytes = 512 * 1024 * 1024L;
+  private static final Set<String> containers = Set.of("moov", "trak", "mdia", "minf", "stbl");
+
+  /**
+   * A top-level box: where it starts and how long it is, header included.
+   */
+  private static final class Box {
+    final String type;
+    final long offset;
+    final long size;
+
+    Box(String type, long offset, long size) {
+      this.type = type;
+      this.offset = offset;
+      this.size = size;
+    }
+
+    long end() {
+      return offset + size;
+    }
+  }
+
+  /**
+   * Walk the top-level boxes using header reads only.
+   */
+  static List<Box> topLevelBoxes(FileChannel channel) throws IOException {
+    List<Box> boxes = new ArrayList<>();
+    long length = channel.size();
+    long position = 0;
+    ByteBuffer header = ByteBuffer.allocate(16);
+    while (position + 8 <= length) {
+      header.clear().limit(8);
+      readFully(channel, header, position);
+      long size = header.getInt(0) & 0xFFFFFFFFL;
+      String type = new String(header.array(), 4, 4, StandardCharsets.ISO_8859_1);
+      if (size == 1) {
+        header.clear().limit(8);
+        readFully(channel, header, position + 8);
+        size = header.getLong(0);
+      } else if (size == 0) {
+        size = length - position;
+      }
+      if (size < 8 || position + size > length) {
+        throw new IOException(String.format("Bad %s box at %d (size %d)", type, position, size));
+      }
+      boxes.add(new Box(type, position, size));
+      position += size;
+    }
+    return boxes;
+  }
+
+  /**
+   * True if the moov already comes before the first mdat.
+   */
+  public static boolean isFastStart(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      for (Box box : topLevelBoxes(channel)) {
+        if (box.type.equals("moov")) {
+          return true;
+        }
+        if (box.type.equals("mdat")) {
+          return false;
+        }
+      }
+    }
+    throw new IOException("No moov or mdat in " + file);
+  }
+
+  /**
+   * The same check on a URL (or path), reading only top-level box headers with range requests
+   * the way KeyframeSegmentPlanner reads a source, so a remote MP4 is never downloaded.
+   */
+  public static boolean isFastStart(String location) throws IOException, InterruptedException {
+    KeyframeSegmentPlanner.Source source = KeyframeSegmentPlanner.open(location);
+    long length = source.length();
+    long position = 0;
+    while (position + 8 <= length) {
+      ByteBuffer header = source.read(position, (int) Math.min(16, length - position));
+      long size = header.getInt(0) & 0xFFFFFFFFL;
+      String type = new String(header.array(), header.arrayOffset() + 4, 4,
+          StandardCharsets.ISO_8859_1);
+      if (type.equals("moov")) {
+        return true;
+      }
+      if (type.equals("mdat")) {
+        return false;
+      }
+      if (size == 1 && header.limit() >= 16) {
+        size = header.getLong(8);
+      } else if (size == 0) {
+        size = length - position;
+      }
+      if (size < 8) {
+        throw new IOException(String.format("Bad %s box at %d (size %d)", type, position, size));
+      }
+      position += size;
+    }
+    throw new IOException("No moov or mdat");
+  }
+
+  /**
+   * Write a fast-start copy of in to out. Returns false (and writes nothing) if in is already
+   * fast-start.
+   */
+  public static boolean relocate(Path in, Path out) throws IOException {
+    try (FileChannel source = FileChannel.open(in, StandardOpenOption.READ)) {
+      List<Box> boxes = topLevelBoxes(source);
+      Box moov = null;
+      Box firstMdat = null;
+      for (Box box : boxes) {
+        if (box.type.equals("moof")) {
+          throw new IOException(in + " is fragmented, there is no moov to move");
+        }
+        if (box.type.equals("mdat") && firstMdat == null) {
+          firstMdat = box;
+        }
+        if (box.type.equals("moov")) {
+          if (moov != null) {
+            throw new IOException(in + " has more than one moov");
+          }
+          moov = box;
+        }
+      }
+      if (moov == null || firstMdat == null) {
+        throw new IOException(in + " needs both a moov and an mdat");
+      }
+      if (moov.offset < firstMdat.offset) {
+        return false;
+      }
+      if (moov.size > maxMoovBytes) {
+        throw new IOException(String.format("moov of %d bytes is too big to relocate", moov.size));
+      }
+
+      ByteBuffer moovBytes = ByteBuffer.allocate((int) moov.size);
+      readFully(source, moovBytes, moov.offset);
+      moovBytes.flip();
+
+      // data between the first mdat and the old moov moves down by the new moov size, data after
+      // the old moov moves by the difference; widening stco to co64 grows the moov, so repeat
+      // until the size settles (at most twice)
+      final Box oldMoov = moov;
+      final long insertAt = firstMdat.offset;
+      boolean widen = false;
+      byte[] rewritten;
+      while (true) {
+        final long newSize = rewrite(moovBytes.duplicate(), offset -> offset, widen).length;
+        LongUnaryOperator shift = offset -> {
+          if (offset >= insertAt && offset < oldMoov.offset) {
+            return offset + newSize;
+          } else if (offset >= oldMoov.end()) {
+            return offset + newSize - oldMoov.size;
+          }
+          return offset;
+        };
+        try {
+          rewritten = rewrite(moovBytes.duplicate(), shift, widen);
+          break;
+        } catch (ArithmeticException e) {
+          if (widen) {
+            throw e;
+          }
+          widen = true;
+        }
+      }
+
+      // everything before the first mdat, then moov, then the rest in order without the old moov
+      Path temp = Files.createTempFile(out.toAbsolutePath().getParent(), ".faststart", ".mp4");
+      try {
+        try (FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+          transferFully(source, 0, insertAt, target);
+          ByteBuffer moovOut = ByteBuffer.wrap(rewritten);
+          while (moovOut.hasRemaining()) {
+            target.write(moovOut);
+          }
+          transferFully(source, insertAt, oldMoov.offset - insertAt, target);
+          transferFully(source, oldMoov.end(), source.size() - oldMoov.end(), target);
+          target.force(false);
+        }
+        copyPermissions(Files.exists(out) ? out : in, temp);
+        Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * createTempFile makes the file owner-only (0600); give it the permissions of the file it
+   * replaces, or of the input, so the rewrite stays readable by whoever could read it before.
+   */
+  private static void copyPermissions(Path from, Path to) throws IOException {
+    if (Files.getFileAttributeView(from, PosixFileAttributeView.class) != null) {
+      Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+    }
+  }
+
+  /**
+   * Copy a box, descending into the containers on the way to stco/co64 and fixing every chunk
+   * offset. Throws ArithmeticException if an offset no longer fits in stco and widen is false.
+   */
+  private static byte[] rewrite(ByteBuffer box, LongUnaryOperator shift, boolean widen)
+      throws IOException {
+    int start = box.position();
+    long size = box.getInt() & 0xFFFFFFFFL;
+    byte[] typeBytes = new byte[4];
+    box.get(typeBytes);
+    String type = new String(typeBytes, StandardCharsets.ISO_8859_1);
+    int headerSize = 8;
+    if (size == 1) {
+      size = box.getLong();
+      headerSize = 16;
+    } else if (size == 0) {
+      size = box.limit() - start;
+    }
+    if (size < headerSize || start + size > box.limit()) {
+      throw new IOException(String.format("Bad %s box inside moov", type));
+    }
+    int end = (int) (start + size);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream((int) size);
+    if (containers.contains(type)) {
+      box.position(start + headerSize);
+      ByteArrayOutputStream children = new ByteArrayOutputStream((int) size);
+      while (box.position() + 8 <= end) {
+        ByteBuffer child = box.duplicate();
+        child.limit(end);
+        children.writeBytes(rewrite(child, shift, widen));
+        box.position(child.position());
+      }
+      writeHeader(out, type, 8 + children.size());
+      children.writeTo(out);
+    } else if (type.equals("stco") || type.equals("co64")) {
+      int versionAndFlags = box.getInt();
+      int count = box.getInt();
+      boolean wide = type.equals("co64") || widen;
+      ByteBuffer table = ByteBuffer.allocate(16 + count * (wide ? 8 : 4));
+      table.putInt(table.capacity());
+      table.put((wide ? "co64" : "stco").getBytes(StandardCharsets.ISO_8859_1));
+      table.putInt(versionAndFlags);
+      table.putInt(count);
+      for (int i = 0; i < count; i++) {
+        long offset = shift.applyAsLong(
+            type.equals("co64") ? box.getLong() : box.getInt() & 0xFFFFFFFFL);
+        if (wide) {
+          table.putLong(offset);
+        } else if (offset > 0xFFFFFFFFL) {
+          throw new ArithmeticException("chunk offset overflows stco");
+        } else {
+          table.putInt((int) offset);
+        }
+      }
+      out.writeBytes(table.array());
+    } else {
+      byte[] copy = new byte[(int) size];
+      box.position(start);
+      box.get(copy);
+      out.writeBytes(copy);
+    }
+    box.position(end);
+    return out.toByteArray();
+  }
+
+  private static void writeHeader(ByteArrayOutputStream out, String type, long size)
+      throws IOException {
+    if (size > 0xFFFFFFFFL) {
+      throw new IOException(type + " box too large");
+    }
+    ByteBuffer header = ByteBuffer.allocate(8);
+    header.putInt((int) size);
+    header.put(type.getBytes(StandardCharsets.ISO_8859_1));
+    out.writeBytes(header.array());
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    long at = position;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, at);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of file at " + at);
+      }
+      at += read;
+    }
+  }
+
+  private static void transferFully(FileChannel source, long position, long count,
+      FileChannel target) throws IOException {
+    long done = 0;
+    while (done < count) {
+      long sent = source.transferTo(position + done, count - done, target);
+      if (sent <= 0) {
+        throw new EOFException("Unexpected end of file at " + (position + done));
+      }
+      done += sent;
+    }
+  }
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      throw new RuntimeException("Usage: FastStartMp4 <in.mp4> [out.mp4]");
+    }
+    Path in = Paths.get(args[0]);
+    Path out = args.length > 1 ? Paths.get(args[1]) : in;
+
+    long started = System.nanoTime();
+    boolean moved = relocate(in, out);
+    double seconds = (System.nanoTime() - started) / 1_000_000_000.0;
+    if (!moved) {
+      System.out.println(in + " is already fast-start");
+      if (!out.equals(in)) {
+        Files.copy(in, out, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return;
+    }
+    System.out.printf("moov moved to the front of %s in %.2f s (%.0f MiB/s)%n", out, seconds,
+        Files.size(out) / (1024.0 * 1024.0) / seconds);
+  }
+}
@@ -0,0 +1,423 @@
+/**
+ * Keyframe Segment Planner
+ *
+ * Reads the video track's sample table (stts, stss) and timescale out of a MOV/MP4 header with
+ * HTTP range requests, without downloading any media, and picks a segment length whose
+ * boundaries land on the source's own keyframes, plus matching H.264 GOP settings. Only box
+ * headers and the moov are fetched, so this takes a handful of round trips whatever the size
+ * of the file.
+ *
+ * Usage: java KeyframeSegmentPlanner <url or file> [target segment length]
+ */
+
+import com.bitmovin.api.sdk.model.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.BitSet;
+
+public class KeyframeSegmentPlanner {
+  /**
+   * Bunch of variables
+   */
+  private static final double defaultSegmentLength = 4.0;
+  private static final double minSegmentLength = 2.0;
+  private static final double maxSegmentLength = 8.0;
+  private static final int maxMoovBytes = 256 * 1024 * 1024;
+  private static final Duration requestTimeout = Duration.ofSeconds(15);
+
+  /**
+   * Random access to the source; either HTTP ranges or a local file.
+   */
+  interface Source {
+    long length() throws IOException;
+
+    ByteBuffer read(long offset, int length) throws IOException;
+  }
+
+  /**
+   * What the planner decided. gopFrames is 0 when there was nothing to go on, in which case
+   * apply() leaves the encoder's GOP settings alone.
+   */
+  public static final class Plan {
+    public final double segmentLength;
+    public final int gopFrames;
+    public final double frameRate;
+    public final double alignedFraction;
+    public final int keyframes;
+
+    Plan(double segmentLength, int gopFrames, double frameRate, double alignedFraction,
+        int keyframes) {
+      this.segmentLength = segmentLength;
+      this.gopFrames = gopFrames;
+      this.frameRate = frameRate;
+      this.alignedFraction = alignedFraction;
+      this.keyframes = keyframes;
+    }
+
+    /**
+     * Fixed GOPs of exactly one segment, so every segment starts with a keyframe. Scene-cut
+     * detection is switched off as well, so the encoder doesn't add keyframes at cuts inside a
+     * segment either. Open vs closed GOP is left to the preset.
+     */
+    public void apply(H264VideoConfiguration videoConfiguration) {
+      if (gopFrames <= 0) {
+        return;
+      }
+      videoConfiguration.setMinGop(gopFrames);
+      videoConfiguration.setMaxGop(gopFrames);
+      videoConfiguration.setMinKeyframeInterval(segmentLength);
+      videoConfiguration.setMaxKeyframeInterval(segmentLength);
+      videoConfiguration.setSceneCutThreshold(0);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("segment %.3f s, GOP %d frames @ %.3f fps, %.0f%% of boundaries on"
+          + " source keyframes (%d keyframes)", segmentLength, gopFrames, frameRate,
+          alignedFraction * 100.0, keyframes);
+    }
+  }
+
+  /**
+   * The video track's timing, as read from the sample table.
+   */
+  static final class Track {
+    long timescale;
+    long duration;
+    int samples;
+    BitSet syncSamples;
+    boolean allSync;
+    long frameDelta;
+  }
+
+  /**
+   * Plan from a URL or local path, falling back to the default segment length if the header
+   * can't be read. A dry run doesn't read the source at all and gets the default.
+   */
+  public static Plan planOrDefault(String location, double target) {
+    if (DryRunPlanner.isRecording()) {
+      return new Plan(target, 0, 0.0, 0.0, 0);
+    }
+    try {
+      return plan(open(location), target);
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Keyframe planning failed, using " + target + " s: " + e.getMessage());
+      return new Plan(target, 0, 0.0, 0.0, 0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new Plan(target, 0, 0.0, 0.0, 0);
+    }
+  }
+
+  static Source open(String location) throws IOException, InterruptedException {
+    if (location.startsWith("http://") || location.startsWith("https://")) {
+      return new HttpSource(URI.create(location));
+    }
+    return new FileSource(location);
+  }
+
+  /**
+   * Length of the video track in seconds, from its mdhd. Edit lists are not applied.
+   */
+  public static double duration(String location) throws IOException, InterruptedException {
+    Track track = readVideoTrack(open(location));
+    if (track.timescale <= 0 || track.duration <= 0) {
+      throw new IOException("No duration in the video track's mdhd");
+    }
+    return (double) track.duration / track.timescale;
+  }
+
+  /**
+   * Read the sample table and choose a segment length close to target.
+   */
+  public static Plan plan(Source source, double target) throws IOException {
+    Track track = readVideoTrack(source);
+    return choose(track, target);
+  }
+
+  /**
+   * Try every whole-frame segment length between min and max and keep the one with the most
+   * boundaries on source keyframes, preferring lengths close to target on ties.
+   */
+  static Plan choose(Track track, double target) {
+    int frames = track.samples;
+    if (frames < 2 || track.frameDelta <= 0) {
+      throw new IllegalStateException("Not enough video samples to plan with");
+    }
+    double frameRate = (double) track.timescale / track.frameDelta;
+    int minFrames = Math.max(1, (int) Math.ceil(minSegmentLength * frameRate));
+    int maxFrames = Math.max(minFrames, (int) Math.floor(maxSegmentLength * frameRate));
+    int targetFrames = Math.max(1, (int) Math.round(target * frameRate));
+
+    // frames are counted in decode order, which is also the order sync samples are numbered in
+    int bestFrames = targetFrames;
+    double bestScore = -1.0;
+    for (int candidate = minFrames; candidate <= maxFrames; candidate++) {
+      int boundaries = 0;
+      int aligned = 0;
+      for (int frame = candidate; frame < frames; frame += candidate) {
+        boundaries++;
+        if (track.allSync || track.syncSamples.get(frame)) {
+          aligned++;
+        }
+      }
+      double score = boundaries == 0 ? 1.0 : (double) aligned / boundaries;
+      boolean better = score > bestScore + 1e-9
+          || (Math.abs(score - bestScore) <= 1e-9
+              && Math.abs(candidate - targetFrames) < Math.abs(bestFrames - targetFrames));
+      if (better) {
+        bestScore = score;
+        bestFrames = candidate;
+      }
+    }
+
+    int keyframes = track.allSync ? frames : track.syncSamples.cardinality();
+    double segmentLength = bestFrames * (double) track.frameDelta / track.timescale;
+    return new Plan(segmentLength, bestFrames, frameRate, bestScore, keyframes);
+  }
+
+  /**
+   * Find the moov with header-only reads, fetch just the moov, and pull the video track out.
+   */
+  static Track readVideoTrack(Source source) throws IOException {
+    long length = source.length();
+    long position = 0;
+    while (position + 8 <= length) {
+      ByteBuffer header = source.read(position, (int) Math.min(16, length - position));
+      long size = header.getInt(0) & 0xFFFFFFFFL;
+      String type = type(header, 4);
+      int headerSize = 8;
+      if (size == 1) {
+        size = header.getLong(8);
+        headerSize = 16;
+      } else if (size == 0) {
+        size = length - position;
+      }
+      if (size < headerSize) {
+        throw new IOException(String.format("Bad %s box at %d", type, position));
+      }
+      if (type.equals("moov")) {
+        if (size > maxMoovBytes) {
+          throw new IOException("moov too large: " + size);
+        }
+        ByteBuffer moov = source.read(position + headerSize, (int) (size - headerSize));
+        Track track = findVideoTrack(moov);
+        if (track == null) {
+          throw new IOException("No video track with a sample table");
+        }
+        return track;
+      }
+      position += size;
+    }
+    throw new IOException("No moov box");
+  }
+
+  private static Track findVideoTrack(ByteBuffer moov) throws IOException {
+    for (ByteBuffer trak = child(moov, "trak", 0); trak != null;
+        trak = child(moov, "trak", end(moov, trak))) {
+      ByteBuffer mdia = child(trak, "mdia", 0);
+      ByteBuffer hdlr = mdia == null ? null : child(mdia, "hdlr", 0);
+      if (hdlr == null || !type(hdlr, 8).equals("vide")) {
+        continue;
+      }
+      ByteBuffer mdhd = child(mdia, "mdhd", 0);
+      ByteBuffer minf = child(mdia, "minf", 0);
+      ByteBuffer stbl = minf == null ? null : child(minf, "stbl", 0);
+      ByteBuffer stts = stbl == null ? null : child(stbl, "stts", 0);
+      if (mdhd == null || stts == null) {
+        continue;
+      }
+
+      Track track = new Track();
+      int version = mdhd.get(0) & 0xFF;
+      track.timescale = mdhd.getInt(version == 1 ? 20 : 12) & 0xFFFFFFFFL;
+      track.duration = version == 1 ? mdhd.getLong(24) : mdhd.getInt(16) & 0xFFFFFFFFL;
+
+      // the most common sample delta in the run-length coded stts is the frame duration
+      int entries = stts.getInt(4);
+      long samples = 0;
+      long commonDelta = 0;
+      long commonCount = 0;
+      for (int i = 0; i < entries; i++) {
+        long count = stts.getInt(8 + i * 8) & 0xFFFFFFFFL;
+        long delta = stts.getInt(12 + i * 8) & 0xFFFFFFFFL;
+        samples += count;
+        if (count > commonCount) {
+          commonCount = count;
+          commonDelta = delta;
+        }
+      }
+      if (samples > Integer.MAX_VALUE) {
+        throw new IOException("Too many samples: " + samples);
+      }
+      track.frameDelta = commonDelta;
+      track.samples = (int) samples;
+
+      // no stss means every sample is a sync sample (intra-only sources such as ProRes)
+      ByteBuffer stss = child(stbl, "stss", 0);
+      track.allSync = stss == null;
+      track.syncSamples = new BitSet((int) samples);
+      if (stss != null) {
+        int syncCount = stss.getInt(4);
+        for (int i = 0; i < syncCount; i++) {
+          long number = stss.getInt(8 + i * 4) & 0xFFFFFFFFL;
+          if (number >= 1 && number <= samples) {
+            track.syncSamples.set((int) (number - 1));
+          }
+        }
+      }
+      return track;
+    }
+    return null;
+  }
+
+  /**
+   * Body of the first child box of the given type at or after from, or null.
+   */
+  private static ByteBuffer child(ByteBuffer parent, String wanted, int from) throws IOException {
+    int position = from;
+    while (position + 8 <= parent.limit()) {
+      long size = parent.getInt(position) & 0xFFFFFFFFL;
+      String type = type(parent, position + 4);
+      int headerSize = 8;
+      if (size == 1) {
+        size = parent.getLong(position + 8);
+        headerSize = 16;
+      } else if (size == 0) {
+        size = parent.limit() - position;
+      }
+      if (size < headerSize || position + size > parent.limit()) {
+        throw new IOException(String.format("Bad %s box inside moov", type));
+      }
+      if (type.equals(wanted)) {
+        ByteBuffer body = parent.duplicate();
+        body.position(position + headerSize).limit((int) (position + size));
+        // the slice remembers where it ended in the parent so siblings can be walked
+        return body.slice();
+      }
+      position += (int) size;
+    }
+    return null;
+  }
+
+  /**
+   * Offset in parent just past the box whose body is child.
+   */
+  private static int end(ByteBuffer parent, ByteBuffer child) {
+    return child.arrayOffset() - parent.arrayOffset() + child.limit();
+  }
+
+  private static String type(ByteBuffer buffer, int offset) {
+    byte[] type = new byte[4];
+    for (int i = 0; i < 4; i++) {
+      type[i] = buffer.get(offset + i);
+    }
+    return new String(type, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Byte ranges over HTTP. A server that ignores Range would send the whole file, so that is
+   * treated as an error rather than downloaded.
+   */
+  private static final class HttpSource implements Source {
+    private final HttpClient http =
+        HttpClient.newBuilder().connectTimeout(requestTimeout).build();
+    private final URI uri;
+    private long length = -1;
+
+    HttpSource(URI uri) {
+      this.uri = uri;
+    }
+
+    @Override
+    public long length() throws IOException {
+      if (length < 0) {
+        read(0, 1);
+      }
+      return length;
+    }
+
+    @Override
+    public ByteBuffer read(long offset, int count) throws IOException {
+      HttpRequest request = HttpRequest.newBuilder(uri)
+          .header("Range", "bytes=" + offset + "-" + (offset + count - 1))
+          .timeout(requestTimeout)
+          .build();
+      HttpResponse<byte[]> response;
+      try {
+        response = http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted reading " + uri, e);
+      }
+      if (response.statusCode() != 206) {
+        throw new IOException(String.format("Range request to %s returned %d", uri,
+            response.statusCode()));
+      }
+      String contentRange = response.headers().firstValue("Content-Range").orElse("");
+      int slash = contentRange.lastIndexOf('/');
+      if (slash >= 0 && !contentRange.endsWith("*")) {
+        length = Long.parseLong(contentRange.substring(slash + 1).trim());
+      }
+      if (response.body().length < count) {
+        throw new EOFException("Short read from " + uri + " at " + offset);
+      }
+      return ByteBuffer.wrap(response.body());
+    }
+  }
+
+  /**
+   * Positional reads on a local file.
+   */
+  private static final class FileSource implements Source {
+    private final String path;
+
+    FileSource(String path) {
+      this.path = path;
+    }
+
+    @Override
+    public long length() throws IOException {
+      try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+        return channel.size();
+      }
+    }
+
+    @Override
+    public ByteBuffer read(long offset, int count) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(count);
+      try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, offset + buffer.position()) < 0) {
+            throw new EOFException("Unexpected end of " + path + " at " + offset);
+          }
+        }
+      }
+      return buffer.flip();
+    }
+  }
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      throw new RuntimeException("Usage: KeyframeSegmentPlanner <url or file> [target]");
+    }
+    double target = args.length > 1 ? Double.parseDouble(args[1]) : defaultSegmentLength;
+
+    long started = System.nanoTime();
+    Plan plan = plan(open(args[0]), target);
+    System.out.printf("%s%nplanned in %.1f ms%n", plan, (System.nanoTime() - started) / 1e6);
+  }
+}
@@ -0,0 +1,621 @@
+/**
+ * Local Origin
+ *
+ * Serves a mirrored encoding output directory (MPDs, fMP4 segments, progressive MP4, sprites)
+ * over plain HTTP/1.1 so QA and load tests don't have to go through S3.
+ *
+ * Usage: java LocalOrigin <root dir> [port] [threads]
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LocalOrigin {
+  /**
+   * Bunch of variables
+   */
+  private static final int defaultPort = 8080;
+  private static final int maxHeaderBytes = 16 * 1024;
+  private static final long maxCachedObjectBytes = 256 * 1024L;
+  private static final long maxCacheBytes = 64 * 1024 * 1024L;
+  private static final int readSliceMs = 250;
+  private static final long idleTimeoutMs = 5000;
+  private static final long headerTimeoutMs = 10000;
+  private static final int maxReadAttempts = 3;
+
+  private final Path root;
+  private final ServerSocketChannel serverChannel;
+  private final ExecutorService workers;
+  private final int threads;
+  private final AtomicInteger connections = new AtomicInteger();
+  private final HotObjectCache cache = new HotObjectCache(maxCacheBytes);
+  private volatile boolean running = true;
+
+  /**
+   * Bind the server socket; call serve() to start accepting.
+   */
+  public LocalOrigin(Path root, int port, int threads) throws IOException {
+    this.root = root.toAbsolutePath().normalize();
+    this.serverChannel = ServerSocketChannel.open();
+    this.serverChannel.bind(new InetSocketAddress(port), 1024);
+    this.workers = Executors.newFixedThreadPool(threads);
+    this.threads = threads;
+  }
+
+  /**
+   * The port we actually bound to (useful when started on port 0).
+   */
+  public int getPort() throws IOException {
+    return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+  }
+
+  /**
+   * Accept connections until close() is called. Each connection is handled on a worker thread
+   * with blocking channels, so FileChannel.transferTo can hand the body straight to the socket.
+   */
+  public void serve() throws IOException {
+    while (running) {
+      SocketChannel client;
+      try {
+        client = serverChannel.accept();
+      } catch (IOException e) {
+        if (!running) {
+          return;
+        }
+        throw e;
+      }
+      connections.incrementAndGet();
+      workers.execute(() -> handleConnection(client));
+    }
+  }
+
+  /**
+   * Stop accepting and shut the workers down.
+   */
+  public void close() throws IOException {
+    running = false;
+    serverChannel.close();
+    workers.shutdownNow();
+  }
+
+  /**
+   * Serve requests on one keep-alive connection until the client goes away, sits idle too long,
+   * or sends something we can't parse (answered with 400).
+   */
+  private void handleConnection(SocketChannel client) {
+    try (client) {
+      client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      // channel reads ignore SO_TIMEOUT, the socket's stream honours it
+      client.socket().setSoTimeout(readSliceMs);
+      InputStream stream = client.socket().getInputStream();
+      ByteBuffer in = ByteBuffer.allocate(maxHeaderBytes);
+      while (true) {
+        Request request;
+        try {
+          request = readRequest(stream, in);
+        } catch (BadRequestException e) {
+          writeStatus(client, 400, "Bad Request", false);
+          return;
+        }
+        if (request == null) {
+          return;
+        }
+        respond(client, request);
+        if (!request.keepAlive) {
+          return;
+        }
+      }
+    } catch (IOException e) {
+      // client went away or timed out mid-request, nothing to do
+    } finally {
+      connections.decrementAndGet();
+    }
+  }
+
+  /**
+   * Read one request head. Bytes past the head stay in the buffer for the next request. Returns
+   * null when the client closes, or when the connection sits idle between requests for longer
+   * than idleTimeoutMs, or at all while other connections are queued for a worker.
+   */
+  private Request readRequest(InputStream stream, ByteBuffer in) throws IOException {
+    long waitingSince = System.nanoTime();
+    while (true) {
+      int end = indexOfHeaderEnd(in);
+      if (end >= 0) {
+        String head = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+        int consumed = end + 4;
+        in.flip();
+        in.position(consumed);
+        in.compact();
+        return Request.parse(head);
+      }
+      if (!in.hasRemaining()) {
+        throw new BadRequestException("Request header too large");
+      }
+      int read;
+      try {
+        read = stream.read(in.array(), in.position(), in.remaining());
+      } catch (SocketTimeoutException e) {
+        long waited = (System.nanoTime() - waitingSince) / 1_000_000;
+        if (in.position() == 0) {
+          if (waited >= idleTimeoutMs || connections.get() > threads) {
+            return null;
+          }
+        } else if (waited >= headerTimeoutMs) {
+          throw new SocketTimeoutException("Request head incomplete after " + waited + " ms");
+        }
+        continue;
+      }
+      if (read < 0) {
+        if (in.position() == 0) {
+          return null;
+        }
+        throw new EOFException("Connection closed mid-request");
+      }
+      in.position(in.position() + read);
+    }
+  }
+
+  private static int indexOfHeaderEnd(ByteBuffer in) {
+    byte[] data = in.array();
+    for (int i = 0; i + 3 < in.position(); i++) {
+      if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Resolve the request against the root dir and write the response.
+   */
+  private void respond(SocketChannel client, Request request) throws IOException {
+    if (!request.method.equals("GET") && !request.method.equals("HEAD")) {
+      writeStatus(client, 405, "Method Not Allowed", request.keepAlive);
+      return;
+    }
+
+    Path file;
+    try {
+      file = resolve(request.path);
+    } catch (BadRequestException e) {
+      writeStatus(client, 400, "Bad Request", request.keepAlive);
+      return;
+    }
+    BasicFileAttributes attributes = file == null ? null : stat(file);
+    if (attributes == null) {
+      writeStatus(client, 404, "Not Found", request.keepAlive);
+      return;
+    }
+
+    // small hot objects (manifests, init segments, vtt) come from memory. The file is stat'ed
+    // again after the read, so the length and ETag we send describe the bytes we actually hold
+    // even if a mirror sync rewrites it under us.
+    byte[] body = null;
+    for (int attempt = 1; attributes.size() <= maxCachedObjectBytes; attempt++) {
+      body = cache.get(file, etagOf(attributes));
+      if (body != null) {
+        break;
+      }
+      byte[] read;
+      try {
+        read = Files.readAllBytes(file);
+      } catch (IOException e) {
+        read = null;
+      }
+      BasicFileAttributes after = stat(file);
+      if (read == null || after == null) {
+        writeStatus(client, 404, "Not Found", request.keepAlive);
+        return;
+      }
+      if (read.length == after.size() && etagOf(after).equals(etagOf(attributes))) {
+        cache.put(file, etagOf(after), read);
+        body = read;
+        break;
+      }
+      if (attempt == maxReadAttempts) {
+        writeStatus(client, 503, "Service Unavailable", request.keepAlive);
+        return;
+      }
+      attributes = after;
+    }
+
+    long length = attributes.size();
+    String etag = etagOf(attributes);
+
+    if (matchesAny(request.ifNoneMatch, etag)) {
+      StringBuilder headers = statusLine(304, "Not Modified");
+      headers.append("ETag: ").append(etag).append("\r\n");
+      finishHeaders(headers, request.keepAlive);
+      writeFully(client, ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.ISO_8859_1)));
+      return;
+    }
+
+    // work out the byte range; If-Range falls back to the full body when the ETag moved
+    long start = 0;
+    long end = length - 1;
+    boolean partial = false;
+    if (request.range != null && (request.ifRange == null || request.ifRange.equals(etag))) {
+      long[] range = parseRange(request.range, length);
+      if (range == null) {
+        StringBuilder headers = statusLine(416, "Range Not Satisfiable");
+        headers.append("Content-Range: bytes */").append(length).append("\r\n");
+        headers.append("Content-Length: 0\r\n");
+        finishHeaders(headers, request.keepAlive);
+        writeFully(client, ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.ISO_8859_1)));
+        return;
+      }
+      start = range[0];
+      end = range[1];
+      partial = true;
+    }
+    long count = end - start + 1;
+
+    StringBuilder headers = partial ? statusLine(206, "Partial Content") : statusLine(200, "OK");
+    headers.append("Content-Type: ").append(contentType(file)).append("\r\n");
+    headers.append("Content-Length: ").append(count).append("\r\n");
+    headers.append("Accept-Ranges: bytes\r\n");
+    headers.append("ETag: ").append(etag).append("\r\n");
+    if (partial) {
+      headers.append("Content-Range: bytes ")
+          .append(start).append('-').append(end).append('/').append(length).append("\r\n");
+    }
+    finishHeaders(headers, request.keepAlive);
+    writeFully(client, ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.ISO_8859_1)));
+
+    if (request.method.equals("HEAD") || count == 0) {
+      return;
+    }
+
+    if (body != null) {
+      writeFully(client, ByteBuffer.wrap(body, (int) start, (int) count));
+      return;
+    }
+
+    // everything else goes from the page cache straight to the socket
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long position = start;
+      long remaining = count;
+      while (remaining > 0) {
+        long sent = channel.transferTo(position, remaining, client);
+        if (sent <= 0 && position >= channel.size()) {
+          throw new EOFException("File shrank while serving " + file);
+        }
+        position += sent;
+        remaining -= sent;
+      }
+    }
+  }
+
+  /**
+   * Attributes of a regular file, or null if it's missing, a link or something else.
+   */
+  private static BasicFileAttributes stat(Path file) {
+    try {
+      BasicFileAttributes attributes =
+          Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      return attributes.isRegularFile() ? attributes : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static String etagOf(BasicFileAttributes attributes) {
+    return String.format("\"%x-%x\"", attributes.size(), attributes.lastModifiedTime().toMillis());
+  }
+
+  /**
+   * If-None-Match: a comma-separated list of tags or "*". Uses the weak comparison, so a W/
+   * prefix on either side is ignored.
+   */
+  static boolean matchesAny(String header, String etag) {
+    if (header == null) {
+      return false;
+    }
+    String ours = etag.startsWith("W/") ? etag.substring(2) : etag;
+    for (String tag : header.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*")) {
+        return true;
+      }
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals(ours)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Map a request path onto the root dir. Returns null for anything that escapes it.
+   */
+  private Path resolve(String requestPath) throws BadRequestException {
+    String path = requestPath;
+    int query = path.indexOf('?');
+    if (query >= 0) {
+      path = path.substring(0, query);
+    }
+    path = decodePath(path);
+    while (path.startsWith("/")) {
+      path = path.substring(1);
+    }
+    try {
+      Path file = root.resolve(path).normalize();
+      return file.startsWith(root) ? file : null;
+    } catch (InvalidPathException e) {
+      throw new BadRequestException("Bad path " + requestPath);
+    }
+  }
+
+  /**
+   * Percent-decode a URI path as UTF-8. Unlike URLDecoder this leaves '+' alone, and a broken
+   * escape, a raw control character or invalid UTF-8 is a bad request rather than an exception.
+   */
+  static String decodePath(String raw) throws BadRequestException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length());
+    for (int i = 0; i < raw.length(); i++) {
+      char c = raw.charAt(i);
+      if (c == '%') {
+        int high = i + 2 < raw.length() ? Character.digit(raw.charAt(i + 1), 16) : -1;
+        int low = high >= 0 ? Character.digit(raw.charAt(i + 2), 16) : -1;
+        if (low < 0) {
+          throw new BadRequestException("Bad escape in " + raw);
+        }
+        bytes.write(high * 16 + low);
+        i += 2;
+      } else if (c > ' ' && c < 0x7f) {
+        bytes.write(c);
+      } else {
+        throw new BadRequestException("Bad character in " + raw);
+      }
+    }
+    try {
+      String path = StandardCharsets.UTF_8.newDecoder()
+          .decode(ByteBuffer.wrap(bytes.toByteArray())).toString();
+      if (path.indexOf('\0') >= 0) {
+        throw new BadRequestException("NUL in " + raw);
+      }
+      return path;
+    } catch (CharacterCodingException e) {
+      throw new BadRequestException("Path is not UTF-8: " + raw);
+    }
+  }
+
+  /**
+   * Parse a single "bytes=a-b", "bytes=a-" or "bytes=-n" range. Returns null if unsatisfiable.
+   * Multi-range requests are answered with the first range only.
+   */
+  static long[] parseRange(String header, long length) {
+    if (!header.startsWith("bytes=") || length == 0) {
+      return null;
+    }
+    String spec = header.substring(6).trim();
+    int comma = spec.indexOf(',');
+    if (comma >= 0) {
+      spec = spec.substring(0, comma).trim();
+    }
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      long start;
+      long end;
+      if (first.isEmpty()) {
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0) {
+          return null;
+        }
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+      }
+      if (start >= length || start > end) {
+        return null;
+      }
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static String contentType(Path file) {
+    String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+    if (name.endsWith(".mpd")) {
+      return "application/dash+xml";
+    } else if (name.endsWith(".m3u8")) {
+      return "application/vnd.apple.mpegurl";
+    } else if (name.endsWith(".m4s") || name.endsWith(".m4v")) {
+      return "video/iso.segment";
+    } else if (name.endsWith(".mp4")) {
+      return "video/mp4";
+    } else if (name.endsWith(".m4a")) {
+      return "audio/mp4";
+    } else if (name.endsWith(".ts")) {
+      return "video/mp2t";
+    } else if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+      return "image/jpeg";
+    } else if (name.endsWith(".png")) {
+      return "image/png";
+    } else if (name.endsWith(".vtt")) {
+      return "text/vtt";
+    }
+    return "application/octet-stream";
+  }
+
+  private static StringBuilder statusLine(int code, String reason) {
+    return new StringBuilder(256).append("HTTP/1.1 ").append(code).append(' ').append(reason)
+        .append("\r\n");
+  }
+
+  private static void finishHeaders(StringBuilder headers, boolean keepAlive) {
+    headers.append("Access-Control-Allow-Origin: *\r\n");
+    headers.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+  }
+
+  private static void writeStatus(SocketChannel client, int code, String reason, boolean keepAlive)
+      throws IOException {
+    StringBuilder headers = statusLine(code, reason);
+    headers.append("Content-Length: 0\r\n");
+    finishHeaders(headers, keepAlive);
+    writeFully(client, ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.ISO_8859_1)));
+  }
+
+  private static void writeFully(SocketChannel client, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      client.write(buffer);
+    }
+  }
+
+  /**
+   * The bits of a request head we care about.
+   */
+  private static final class Request {
+    String method;
+    String path;
+    String range;
+    String ifRange;
+    String ifNoneMatch;
+    boolean keepAlive;
+
+    static Request parse(String head) throws BadRequestException {
+      String[] lines = head.split("\r\n");
+      String[] requestLine = lines[0].split(" ");
+      if (requestLine.length != 3 || requestLine[0].isEmpty() || !requestLine[1].startsWith("/")
+          || !requestLine[2].startsWith("HTTP/1.")) {
+        throw new BadRequestException("Bad request line: " + lines[0]);
+      }
+      Request request = new Request();
+      request.method = requestLine[0];
+      request.path = requestLine[1];
+      request.keepAlive = !requestLine[2].equals("HTTP/1.0");
+      for (int i = 1; i < lines.length; i++) {
+        int colon = lines[i].indexOf(':');
+        if (colon <= 0) {
+          continue;
+        }
+        String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+        String value = lines[i].substring(colon + 1).trim();
+        switch (name) {
+          case "range":
+            request.range = value;
+            break;
+          case "if-range":
+            request.ifRange = value;
+            break;
+          case "if-none-match":
+            request.ifNoneMatch = value;
+            break;
+          case "connection":
+            request.keepAlive = !value.equalsIgnoreCase("close");
+            break;
+          default:
+            break;
+        }
+      }
+      return request;
+    }
+  }
+
+  /**
+   * Something in the request we can't make sense of; answered with 400.
+   */
+  private static final class BadRequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    BadRequestException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Byte-bounded LRU of small objects, keyed by path and invalidated when the ETag changes.
+   */
+  private static final class HotObjectCache {
+    private final long capacity;
+    private long size;
+    private final LinkedHashMap<Path, Map.Entry<String, byte[]>> entries =
+        new LinkedHashMap<>(256, 0.75f, true);
+
+    HotObjectCache(long capacity) {
+      this.capacity = capacity;
+    }
+
+    synchronized byte[] get(Path file, String etag) {
+      Map.Entry<String, byte[]> entry = entries.get(file);
+      if (entry == null) {
+        return null;
+      }
+      if (!entry.getKey().equals(etag)) {
+        entries.remove(file);
+        size -= entry.getValue().length;
+        return null;
+      }
+      return entry.getValue();
+    }
+
+    synchronized void put(Path file, String etag, byte[] body) {
+      Map.Entry<String, byte[]> previous = entries.put(file, Map.entry(etag, body));
+      if (previous != null) {
+        size -= previous.getValue().length;
+      }
+      size += body.length;
+      var iterator = entries.values().iterator();
+      while (size > capacity && iterator.hasNext()) {
+        size -= iterator.next().getValue().length;
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      throw new RuntimeException("Usage: LocalOrigin <root dir> [port] [threads]");
+    }
+    Path root = Paths.get(args[0]);
+    if (!Files.isDirectory(root)) {
+      throw new RuntimeException("Not a directory: " + root);
+    }
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : defaultPort;
+    int threads = args.length > 2
+        ? Integer.parseInt(args[2])
+        : Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+
+    LocalOrigin origin = new LocalOrigin(root, port, threads);
+    System.out.printf("Serving %s on http://localhost:%d/%n", root.toAbsolutePath(), origin.getPort());
+    origin.serve();
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Local Origin Benchmark
+ *
+ * Starts a LocalOrigin on a mirrored output directory and hammers it with keep-alive clients,
+ * reporting requests/sec and tail latency. Requests cycle through every file under the root,
+ * so manifests, init segments and media segments are mixed the way a player would mix them.
+ *
+ * Usage: java LocalOriginBenchmark <root dir> [concurrency] [seconds]
+ */
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class LocalOriginBenchmark {
+  /**
+   * Bunch of variables
+   */
+  private static final int defaultConcurrency = 32;
+  private static final int defaultSeconds = 20;
+  private static final int warmupSeconds = 3;
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      throw new RuntimeException("Usage: LocalOriginBenchmark <root dir> [concurrency] [seconds]");
+    }
+    final Path root = Paths.get(args[0]).toAbsolutePath().normalize();
+    final int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : defaultConcurrency;
+    final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : defaultSeconds;
+
+    // collect every file we can serve
+    List<String> paths;
+    try (Stream<Path> files = Files.walk(root)) {
+      paths = files.filter(Files::isRegularFile)
+          .map(file -> "/" + root.relativize(file).toString().replace('\\', '/'))
+          .collect(Collectors.toList());
+    }
+    if (paths.isEmpty()) {
+      throw new RuntimeException("Nothing to serve under " + root);
+    }
+
+    // one worker per client connection so nobody queues inside the origin
+    LocalOrigin origin = new LocalOrigin(root, 0, concurrency);
+    Thread acceptor = new Thread(() -> {
+      try {
+        origin.serve();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }, "origin-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    final String base = "http://localhost:" + origin.getPort();
+
+    System.out.printf("Benchmarking %d files, %d clients, %d s (+%d s warmup)%n",
+        paths.size(), concurrency, seconds, warmupSeconds);
+
+    final long warmupEnd = System.nanoTime() + warmupSeconds * 1_000_000_000L;
+    final long end = warmupEnd + seconds * 1_000_000_000L;
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final long[][] perClient = new long[concurrency][];
+    final List<Thread> clients = new ArrayList<>();
+
+    for (int c = 0; c < concurrency; c++) {
+      final int clientIndex = c;
+      Thread client = new Thread(() -> {
+        // each client gets its own HttpClient, i.e. its own keep-alive connection
+        HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        long[] latencies = new long[1 << 16];
+        int count = 0;
+        int next = clientIndex;
+        while (true) {
+          long started = System.nanoTime();
+          if (started >= end) {
+            break;
+          }
+          String path = paths.get(next++ % paths.size());
+          try {
+            HttpResponse<byte[]> response = http.send(
+                HttpRequest.newBuilder(URI.create(base + path)).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+            long finished = System.nanoTime();
+            if (response.statusCode() != 200) {
+              errors.incrementAndGet();
+            }
+            if (started >= warmupEnd) {
+              bytes.addAndGet(response.body().length);
+              if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+              }
+              latencies[count++] = finished - started;
+            }
+          } catch (Exception e) {
+            errors.incrementAndGet();
+          }
+        }
+        perClient[clientIndex] = Arrays.copyOf(latencies, count);
+      }, "client-" + c);
+      clients.add(client);
+      client.start();
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+    origin.close();
+
+    // merge and report
+    long[] all = Arrays.stream(perClient).flatMapToLong(Arrays::stream).toArray();
+    Arrays.sort(all);
+    double mib = bytes.get() / (1024.0 * 1024.0);
+    System.out.printf("requests:   %d (%d errors)%n", all.length, errors.get());
+    System.out.printf("throughput: %.0f req/s, %.1f MiB/s%n",
+        all.length / (double) seconds, mib / seconds);
+    System.out.printf("latency:    p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+        percentile(all, 50.0), percentile(all, 90.0), percentile(all, 99.0),
+        percentile(all, 99.9), percentile(all, 100.0));
+  }
+
+  /**
+   * Nearest-rank percentile of sorted nanosecond latencies, in milliseconds.
+   */
+  private static double percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0.0;
+    }
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+    return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1] / 1_000_000.0;
+  }
+}
@@ -1,10 +1,16 @@
 /**
  * Progressive MP4 Exercise
+ *
+ * Once the encoding is done, the MP4 in S3 is checked for fast-start by reading its top-level box
+ * headers with presigned range requests (BITMOVIN_S3_REGION, default eu-west-1). An MP4 with the
+ * moov after the mdat fails the job. The fix is a manual step: download it, run FastStartMp4 on
+ * it and upload it again.
  */
 
 
 import com.bitmovin.api.sdk.BitmovinApi;
 import com.bitmovin.api.sdk.model.*;
+import java.io.IOException;
 import java.util.*;
 
 public class ProgressiveMP4 {
@@ -20,12 +26,13 @@ public class ProgressiveMP4 {
   private static final int videoHeight = 720;
   private static final long videoBitrate = 4000000L;
   private static final long audioBitrate = 128000L;
+  private static final String defaultS3Region = "eu-west-1";
 
   /**
    * Get a variable from the environment and throw exception if it doesn't exist.
    */
   private static String macGetEnv(String name) throws RuntimeException {
-    String value = System.getenv(name);
+    String value = DryRunPlanner.env(name);
     if (value == null) {
       throw new RuntimeException("Can't get "+name);
     }
@@ -39,7 +46,7 @@ public class ProgressiveMP4 {
 
     // some variables
     final String inputPath = "/input/flower_show_1080p.mov";
-    final String outputPath = "/output/encodings/progressive";
+    final String outputBase = "/output/encodings/progressive";
     final String fileName = "progressive_output.mp4";
     final String hostName = "mackenzie-emea.s3.eu-west-1.amazonaws.com";
 
@@ -49,103 +56,150 @@ public class ProgressiveMP4 {
     myS3AccessKey = macGetEnv("BITMOVIN_S3_ACCESS_KEY");
     myS3SecretKey = macGetEnv("BITMOVIN_S3_SECRET_KEY");
 
-    // create API
-    BitmovinApi bitmovinApi = BitmovinApi.builder().withApiKey(myApiKey).build();
-
-    // create the input
-    HttpInput input = new HttpInput();
-    input.setHost(hostName);
-    input = bitmovinApi.encoding.inputs.http.create(input);
-
-    // create the output
-    S3Output output = new S3Output();
-    output.setBucketName(myS3BucketName);
-    output.setAccessKey(myS3AccessKey);
-    output.setSecretKey(myS3SecretKey);
-    output = bitmovinApi.encoding.outputs.s3.create(output);
-
-    // create the encoding
-    Encoding encoding = new Encoding();
-    encoding.setCloudRegion(CloudRegion.AUTO);
-    encoding.setEncoderVersion("LATEST");
-    encoding.setName("MacKenzie Exercise - Progressive MP4");
-    encoding = bitmovinApi.encoding.encodings.create(encoding);
-
-    // create the H264 video config
-    H264VideoConfiguration videoConfiguration = new H264VideoConfiguration();
-    videoConfiguration.setName(String.format("H.264 %dp", videoHeight));
-    videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_STANDARD);
-    videoConfiguration.setHeight(videoHeight);
-    videoConfiguration.setBitrate(videoBitrate);
-    videoConfiguration =
-        bitmovinApi.encoding.configurations.video.h264.create(videoConfiguration);
-
-    // create the AAC audio config
-    AacAudioConfiguration audioConfiguration = new AacAudioConfiguration();
-    audioConfiguration.setName(String.format("AAC %d kbit/s", audioBitrate));
-    audioConfiguration.setBitrate(audioBitrate);
-    audioConfiguration = bitmovinApi.encoding.configurations.audio.aac.create(audioConfiguration);
-
-    // create input stream
-    StreamInput streamInput = new StreamInput();
-    streamInput.setInputId(input.getId());
-    streamInput.setInputPath(inputPath);
-    streamInput.setSelectionMode(StreamSelectionMode.AUTO);
-
-    // set video stream
-    Stream streamVid = new Stream();
-    streamVid.addInputStreamsItem(streamInput);
-    streamVid.setCodecConfigId(videoConfiguration.getId());
-    streamVid.setMode(StreamMode.STANDARD);
-
-    // set audio stream
-    Stream streamAudio = new Stream();
-    streamAudio.addInputStreamsItem(streamInput);
-    streamAudio.setCodecConfigId(audioConfiguration.getId());
-    streamAudio.setMode(StreamMode.STANDARD);
-
-    // create the streams
-    streamVid = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamVid);
-    streamAudio = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamAudio);
-
-    // create list of streams
-    List<Stream> combinedStreams = new ArrayList<>();
-    combinedStreams.add(streamVid);
-    combinedStreams.add(streamAudio);
-
-    // create encoding output
-    EncodingOutput encodingOutput = new EncodingOutput();
-    encodingOutput.setOutputPath(outputPath);
-    encodingOutput.setOutputId(output.getId());
-
-    // create the MP4 muxing
-    Mp4Muxing muxing = new Mp4Muxing();
-    muxing.addOutputsItem(encodingOutput);
-    muxing.setFilename(fileName);
-
-    for (Stream stream : combinedStreams) {
-      MuxingStream muxingStream = new MuxingStream();
-      muxingStream.setStreamId(stream.getId());
-      muxing.addStreamsItem(muxingStream);
-    }
-
-    bitmovinApi.encoding.encodings.muxings.mp4.create(encoding.getId(), muxing);
-
-    // start the encoding
-    StartEncodingRequest startEncodingRequest = new StartEncodingRequest();
-    bitmovinApi.encoding.encodings.start(encoding.getId(), startEncodingRequest);
-
-    // wait for it to be done
-    Task task;
-    do {
-      Thread.sleep(5000);
-      task = bitmovinApi.encoding.encodings.status(encoding.getId());
-    } while (task.getStatus() != Status.FINISHED
-        && task.getStatus() != Status.ERROR
-        && task.getStatus() != Status.CANCELED);
-
-    if (task.getStatus() == Status.ERROR) {
-      throw new RuntimeException("Encoding failed");
+    // don't encode the same source with the same settings twice
+    try (EncodeDedup.Claim claim = EncodeDedup.open().claim(new EncodeDedup.Fingerprint()
+        .input(hostName, inputPath)
+        .with("video.codec", "H264 " + PresetConfiguration.VOD_STANDARD)
+        .with("video.height", videoHeight)
+        .with("video.bitrate", videoBitrate)
+        .with("video.mode", StreamMode.STANDARD)
+        .with("audio.codec", "AAC")
+        .with("audio.bitrate", audioBitrate)
+        .with("audio.mode", StreamMode.STANDARD)
+        .with("muxing", "MP4"))) {
+      if (claim.previous() != null) {
+        System.out.println("Already encoded: " + claim.previous());
+        return;
+      }
+
+      // each fingerprint writes to its own directory, so no other job can overwrite the
+      // files an index entry points at
+      final String outputPath = claim.outputPath(outputBase);
+
+      // create API (DryRunPlanner swaps in its recorder during a dry run)
+      BitmovinApi bitmovinApi = DryRunPlanner.api(myApiKey);
+
+      // create the input
+      HttpInput input = new HttpInput();
+      input.setHost(hostName);
+      input = bitmovinApi.encoding.inputs.http.create(input);
+
+      // create the output
+      S3Output output = new S3Output();
+      output.setBucketName(myS3BucketName);
+      output.setAccessKey(myS3AccessKey);
+      output.setSecretKey(myS3SecretKey);
+      output = bitmovinApi.encoding.outputs.s3.create(output);
+
+      // create the encoding
+      Encoding encoding = new Encoding();
+      encoding.setCloudRegion(CloudRegion.AUTO);
+      encoding.setEncoderVersion("LATEST");
+      encoding.setName("MacKenzie Exercise - Progressive MP4");
+      encoding = bitmovinApi.encoding.encodings.create(encoding);
+
+      // create the H264 video config
+      H264VideoConfiguration videoConfiguration = new H264VideoConfiguration();
+      videoConfiguration.setName(String.format("H.264 %dp", videoHeight));
+      videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_STANDARD);
+      videoConfiguration.setHeight(videoHeight);
+      videoConfiguration.setBitrate(videoBitrate);
+      videoConfiguration =
+          bitmovinApi.encoding.configurations.video.h264.create(videoConfiguration);
+
+      // create the AAC audio config
+      AacAudioConfiguration audioConfiguration = new AacAudioConfiguration();
+      audioConfiguration.setName(String.format("AAC %d kbit/s", audioBitrate));
+      audioConfiguration.setBitrate(audioBitrate);
+      audioConfiguration = bitmovinApi.encoding.configurations.audio.aac.create(audioConfiguration);
+
+      // create input stream
+      StreamInput streamInput = new StreamInput();
+      streamInput.setInputId(input.getId());
+      streamInput.setInputPath(inputPath);
+      streamInput.setSelectionMode(StreamSelectionMode.AUTO);
+
+      // set video stream
+      Stream streamVid = new Stream();
+      streamVid.addInputStreamsItem(streamInput);
+      streamVid.setCodecConfigId(videoConfiguration.getId());
+      streamVid.setMode(StreamMode.STANDARD);
+
+      // set audio stream
+      Stream streamAudio = new Stream();
+      streamAudio.addInputStreamsItem(streamInput);
+      streamAudio.setCodecConfigId(audioConfiguration.getId());
+      streamAudio.setMode(StreamMode.STANDARD);
+
+      // create the streams
+      streamVid = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamVid);
+      streamAudio = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamAudio);
+
+      // create list of streams
+      List<Stream> combinedStreams = new ArrayList<>();
+      combinedStreams.add(streamVid);
+      combinedStreams.add(streamAudio);
+
+      // create encoding output
+      EncodingOutput encodingOutput = new EncodingOutput();
+      encodingOutput.setOutputPath(outputPath);
+      encodingOutput.setOutputId(output.getId());
+
+      // create the MP4 muxing
+      Mp4Muxing muxing = new Mp4Muxing();
+      muxing.addOutputsItem(encodingOutput);
+      muxing.setFilename(fileName);
+
+      for (Stream stream : combinedStreams) {
+        MuxingStream muxingStream = new MuxingStream();
+        muxingStream.setStreamId(stream.getId());
+        muxing.addStreamsItem(muxingStream);
+      }
+
+      bitmovinApi.encoding.encodings.muxings.mp4.create(encoding.getId(), muxing);
+
+      // start the encoding, or queue it if an EncodingScheduler is taking them
+      StartEncodingRequest startEncodingRequest = new StartEncodingRequest();
+      EncodingScheduler.start(bitmovinApi, encoding.getId(), startEncodingRequest);
+
+      // wait for it to be done
+      Task task;
+      do {
+        DryRunPlanner.pause(5000);
+        task = bitmovinApi.encoding.encodings.status(encoding.getId());
+      } while (task.getStatus() != Status.FINISHED
+          && task.getStatus() != Status.ERROR
+          && task.getStatus() != Status.CANCELED);
+
+      if (task.getStatus() == Status.ERROR) {
+        throw new RuntimeException("Encoding failed");
+      }
+
+      // the MP4 in S3 has to start playing before it has fully downloaded; a failure here
+      // abandons the claim, so the job isn't recorded as done
+      if (task.getStatus() == Status.FINISHED && !DryRunPlanner.isRecording()) {
+        String object = "s3://" + myS3BucketName + outputPath + "/" + fileName;
+        String region = System.getenv("BITMOVIN_S3_REGION");
+        boolean fastStart;
+        try {
+          fastStart = FastStartMp4.isFastStart(S3PresignedUrl.get(myS3BucketName,
+              region != null ? region : defaultS3Region, outputPath.substring(1) + "/" + fileName,
+              myS3AccessKey, myS3SecretKey).toString());
+        } catch (IOException e) {
+          throw new RuntimeException("Could not check " + object + " for fast-start", e);
+        }
+        if (!fastStart) {
+          throw new RuntimeException(object + " has its moov after the mdat; download it, run "
+              + "FastStartMp4 on it and upload it again");
+        }
+        System.out.println(object + " is fast-start");
+      }
+
+      // remember it so the next identical submission is a no-op
+      if (task.getStatus() == Status.FINISHED) {
+        claim.complete(new EncodeDedup.Result("s3://" + myS3BucketName + outputPath, fileName,
+            encoding.getId()));
+      }
     }
   }
 }
@@ -0,0 +1,123 @@
+/**
+ * S3 Presigned Url
+ *
+ * Builds a short-lived presigned GET URL (AWS Signature Version 4, query-string auth) for an
+ * object, so plain HTTP range requests can read it from a private bucket with the same access key
+ * the Bitmovin S3 output uses. Only the host header is signed, so the caller is free to add Range.
+ */
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+public class S3PresignedUrl {
+  /**
+   * Bunch of variables
+   */
+  private static final Duration defaultExpiry = Duration.ofMinutes(5);
+  private static final DateTimeFormatter amzDate =
+      DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+  /**
+   * Presigned GET for s3://bucket/key, valid for a few minutes.
+   */
+  public static URI get(String bucket, String region, String key, String accessKey,
+      String secretKey) {
+    // dotted bucket names don't match the wildcard certificate, so they go path-style
+    String host = bucket.contains(".")
+        ? "s3." + region + ".amazonaws.com"
+        : bucket + ".s3." + region + ".amazonaws.com";
+    String path = bucket.contains(".") ? "/" + bucket + "/" + key : "/" + key;
+    return URI.create("https://" + host
+        + sign(host, path, region, accessKey, secretKey, Instant.now(), defaultExpiry));
+  }
+
+  /**
+   * The encoded path plus the signed query string.
+   */
+  static String sign(String host, String path, String region, String accessKey,
+      String secretKey, Instant now, Duration expiry) {
+    String timestamp = amzDate.format(now);
+    String date = timestamp.substring(0, 8);
+    String scope = date + "/" + region + "/s3/aws4_request";
+
+    Map<String, String> query = new TreeMap<>();
+    query.put("X-Amz-Algorithm", "AWS4-HMAC-SHA256");
+    query.put("X-Amz-Credential", accessKey + "/" + scope);
+    query.put("X-Amz-Date", timestamp);
+    query.put("X-Amz-Expires", Long.toString(expiry.getSeconds()));
+    query.put("X-Amz-SignedHeaders", "host");
+    StringJoiner canonicalQuery = new StringJoiner("&");
+    for (Map.Entry<String, String> parameter : query.entrySet()) {
+      canonicalQuery.add(encode(parameter.getKey(), true) + "="
+          + encode(parameter.getValue(), true));
+    }
+
+    String canonicalPath = encode(path, false);
+    String canonicalRequest = String.join("\n", "GET", canonicalPath, canonicalQuery.toString(),
+        "host:" + host, "", "host", "UNSIGNED-PAYLOAD");
+    String stringToSign = String.join("\n", "AWS4-HMAC-SHA256", timestamp, scope,
+        hex(sha256(canonicalRequest)));
+
+    byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+    signingKey = hmac(signingKey, region);
+    signingKey = hmac(signingKey, "s3");
+    signingKey = hmac(signingKey, "aws4_request");
+    String signature = hex(hmac(signingKey, stringToSign));
+    return canonicalPath + "?" + canonicalQuery + "&X-Amz-Signature=" + signature;
+  }
+
+  /**
+   * SigV4 URI encoding: everything but unreserved characters, and '/' too unless it separates
+   * path segments.
+   */
+  static String encode(String value, boolean encodeSlash) {
+    StringBuilder encoded = new StringBuilder();
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      char c = (char) (b & 0xFF);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+          || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !encodeSlash)) {
+        encoded.append(c);
+      } else {
+        encoded.append(String.format("%%%02X", b & 0xFF));
+      }
+    }
+    return encoded.toString();
+  }
+
+  private static byte[] sha256(String value) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException("SHA-256 not available", e);
+    }
+  }
+
+  private static byte[] hmac(byte[] key, String value) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException("HmacSHA256 not available", e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
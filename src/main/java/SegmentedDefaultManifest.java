@@ -22,7 +22,7 @@ public class SegmentedDefaultManifest {
    * Get a variable from the environment and throw exception if it doesn't exist.
    */
   private static String macGetEnv(String name) throws RuntimeException {
-    String value = System.getenv(name);
+    String value = DryRunPlanner.env(name);
     if (value == null) {
       throw new RuntimeException("Can't get "+name);
     }
@@ -36,10 +36,15 @@ public class SegmentedDefaultManifest {
 
     // some variables
     final String inputPath = "/input/flower_show_1080p.mov";
-    final String outputPath = "/output/encodings/segmented_default_manifest";
+    final String outputBase = "/output/encodings/segmented_default_manifest";
     final String fileName = "segmented_output.mpd";
     final String hostName = "mackenzie-emea.s3.eu-west-1.amazonaws.com";
-    final double segmentLength = 4.0;
+
+    // line segments up with the source's own keyframes, or fall back to 4 s
+    final KeyframeSegmentPlanner.Plan segmentPlan =
+        KeyframeSegmentPlanner.planOrDefault("https://" + hostName + inputPath, 4.0);
+    final double segmentLength = segmentPlan.segmentLength;
+    System.out.println("Segment plan: " + segmentPlan);
 
     // get some config stuff from environment variables.
     myApiKey = macGetEnv("BITMOVIN_API_KEY");
@@ -47,118 +52,163 @@ public class SegmentedDefaultManifest {
     myS3AccessKey = macGetEnv("BITMOVIN_S3_ACCESS_KEY");
     myS3SecretKey = macGetEnv("BITMOVIN_S3_SECRET_KEY");
 
-    // create API
-    BitmovinApi bitmovinApi = BitmovinApi.builder().withApiKey(myApiKey).build();
-
-    // create the input
-    HttpInput input = new HttpInput();
-    input.setHost(hostName);
-    input = bitmovinApi.encoding.inputs.http.create(input);
-
-    // create the output
-    S3Output output = new S3Output();
-    output.setBucketName(myS3BucketName);
-    output.setAccessKey(myS3AccessKey);
-    output.setSecretKey(myS3SecretKey);
-    output = bitmovinApi.encoding.outputs.s3.create(output);
-
-    // create the encoding
-    Encoding encoding = new Encoding();
-    encoding.setCloudRegion(CloudRegion.AUTO);
-    encoding.setEncoderVersion("LATEST");
-    encoding.setName("MacKenzie Exercise - Segmented with Default Manifest");
-    encoding = bitmovinApi.encoding.encodings.create(encoding);
-
-    // create the H264 video config
-    H264VideoConfiguration videoConfiguration = new H264VideoConfiguration();
-    videoConfiguration.setName(String.format("H.264 %dp", videoHeight));
-    videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_STANDARD);
-    videoConfiguration.setHeight(videoHeight);
-    videoConfiguration.setBitrate(videoBitrate);
-    videoConfiguration =
-        bitmovinApi.encoding.configurations.video.h264.create(videoConfiguration);
-
-    // create the AAC audio config
-    AacAudioConfiguration audioConfiguration = new AacAudioConfiguration();
-    audioConfiguration.setName(String.format("AAC %d kbit/s", audioBitrate));
-    audioConfiguration.setBitrate(audioBitrate);
-    audioConfiguration = bitmovinApi.encoding.configurations.audio.aac.create(audioConfiguration);
-
-    // create input stream
-    StreamInput streamInput = new StreamInput();
-    streamInput.setInputId(input.getId());
-    streamInput.setInputPath(inputPath);
-    streamInput.setSelectionMode(StreamSelectionMode.AUTO);
-
-    // set video stream
-    Stream streamVid = new Stream();
-    streamVid.addInputStreamsItem(streamInput);
-    streamVid.setCodecConfigId(videoConfiguration.getId());
-    streamVid.setMode(StreamMode.STANDARD);
-
-    // set audio stream
-    Stream streamAudio = new Stream();
-    streamAudio.addInputStreamsItem(streamInput);
-    streamAudio.setCodecConfigId(audioConfiguration.getId());
-    streamAudio.setMode(StreamMode.STANDARD);
-
-    // create the streams
-    streamVid = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamVid);
-    streamAudio = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamAudio);
-
-    // create encoding output
-    EncodingOutput encodingOutput = new EncodingOutput();
-    encodingOutput.setOutputPath(outputPath);
-    encodingOutput.setOutputId(output.getId());
-
-    // create the fmp4 video muxing
-    MuxingStream muxingStreamVid = new MuxingStream();
-    muxingStreamVid.setStreamId(streamVid.getId());
-
-    Fmp4Muxing muxingVid = new Fmp4Muxing();
-    encodingOutput.setOutputPath(outputPath + "/video");
-    muxingVid.addOutputsItem(encodingOutput);
-    muxingVid.setSegmentLength(segmentLength);
-    muxingVid.addStreamsItem(muxingStreamVid);
-    bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingVid);
-
-    // create audio muxing
-    MuxingStream muxingStreamAudio = new MuxingStream();
-    muxingStreamAudio.setStreamId(streamAudio.getId());
-
-    Fmp4Muxing muxingAudio = new Fmp4Muxing();
-    encodingOutput.setOutputPath(outputPath + "/audio");
-    muxingAudio.addOutputsItem(encodingOutput);
-    muxingAudio.setSegmentLength(segmentLength);
-    muxingAudio.addStreamsItem(muxingStreamAudio);
-    bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingAudio);
-
-    // start the encoding
-    StartEncodingRequest startEncodingRequest = new StartEncodingRequest();
-    bitmovinApi.encoding.encodings.start(encoding.getId(), startEncodingRequest);
-
-    // create the DASH manifest
-    DashManifestDefault dashManifestDefault = new DashManifestDefault();
-    dashManifestDefault.setEncodingId(encoding.getId());
-    dashManifestDefault.setManifestName(fileName);
-    dashManifestDefault.setVersion(DashManifestDefaultVersion.V1);
-    encodingOutput.setOutputPath(outputPath);
-    dashManifestDefault.addOutputsItem(encodingOutput);
-    dashManifestDefault = bitmovinApi.encoding.manifests.dash.defaultapi.create(dashManifestDefault);
-
-    // wait for it to be done
-    Task task;
-    do {
-      Thread.sleep(5000);
-      task = bitmovinApi.encoding.encodings.status(encoding.getId());
-    } while (task.getStatus() != Status.FINISHED
-        && task.getStatus() != Status.ERROR
-        && task.getStatus() != Status.CANCELED);
-
-    if (task.getStatus() == Status.ERROR) {
-      throw new RuntimeException("Encoding failed");
+    // don't encode the same source with the same settings twice
+    try (EncodeDedup.Claim claim = EncodeDedup.open().claim(new EncodeDedup.Fingerprint()
+        .input(hostName, inputPath)
+        .with("video.codec", "H264 " + PresetConfiguration.VOD_STANDARD)
+        .with("video.height", videoHeight)
+        .with("video.bitrate", videoBitrate)
+        .with("video.mode", StreamMode.STANDARD)
+        .with("video.gop", segmentPlan.gopFrames)
+        .with("video.sceneCut", segmentPlan.gopFrames > 0 ? "off" : "preset")
+        .with("audio.codec", "AAC")
+        .with("audio.bitrate", audioBitrate)
+        .with("audio.mode", StreamMode.STANDARD)
+        .with("muxing", "FMP4 " + segmentLength)
+        .with("manifest", "DASH default " + DashManifestDefaultVersion.V1))) {
+      if (claim.previous() != null) {
+        System.out.println("Already encoded: " + claim.previous());
+        return;
+      }
+
+      // each fingerprint writes to its own directory, so no other job can overwrite the
+      // files an index entry points at
+      final String outputPath = claim.outputPath(outputBase);
+
+      // create API (DryRunPlanner swaps in its recorder during a dry run)
+      BitmovinApi bitmovinApi = DryRunPlanner.api(myApiKey);
+
+      // create the input
+      HttpInput input = new HttpInput();
+      input.setHost(hostName);
+      input = bitmovinApi.encoding.inputs.http.create(input);
+
+      // create the output
+      S3Output output = new S3Output();
+      output.setBucketName(myS3BucketName);
+      output.setAccessKey(myS3AccessKey);
+      output.setSecretKey(myS3SecretKey);
+      output = bitmovinApi.encoding.outputs.s3.create(output);
+
+      // create the encoding
+      Encoding encoding = new Encoding();
+      encoding.setCloudRegion(CloudRegion.AUTO);
+      encoding.setEncoderVersion("LATEST");
+      encoding.setName("MacKenzie Exercise - Segmented with Default Manifest");
+      encoding = bitmovinApi.encoding.encodings.create(encoding);
+
+      // create the H264 video config
+      H264VideoConfiguration videoConfiguration = new H264VideoConfiguration();
+      videoConfiguration.setName(String.format("H.264 %dp", videoHeight));
+      videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_STANDARD);
+      videoConfiguration.setHeight(videoHeight);
+      videoConfiguration.setBitrate(videoBitrate);
+      segmentPlan.apply(videoConfiguration);
+      videoConfiguration =
+          bitmovinApi.encoding.configurations.video.h264.create(videoConfiguration);
+
+      // create the AAC audio config
+      AacAudioConfiguration audioConfiguration = new AacAudioConfiguration();
+      audioConfiguration.setName(String.format("AAC %d kbit/s", audioBitrate));
+      audioConfiguration.setBitrate(audioBitrate);
+      audioConfiguration = bitmovinApi.encoding.configurations.audio.aac.create(audioConfiguration);
+
+      // create input stream
+      StreamInput streamInput = new StreamInput();
+      streamInput.setInputId(input.getId());
+      streamInput.setInputPath(inputPath);
+      streamInput.setSelectionMode(StreamSelectionMode.AUTO);
+
+      // set video stream
+      Stream streamVid = new Stream();
+      streamVid.addInputStreamsItem(streamInput);
+      streamVid.setCodecConfigId(videoConfiguration.getId());
+      streamVid.setMode(StreamMode.STANDARD);
+
+      // set audio stream
+      Stream streamAudio = new Stream();
+      streamAudio.addInputStreamsItem(streamInput);
+      streamAudio.setCodecConfigId(audioConfiguration.getId());
+      streamAudio.setMode(StreamMode.STANDARD);
+
+      // create the streams
+      streamVid = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamVid);
+      streamAudio = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamAudio);
+
+      // create encoding output
+      EncodingOutput encodingOutput = new EncodingOutput();
+      encodingOutput.setOutputPath(outputPath);
+      encodingOutput.setOutputId(output.getId());
+
+      // create the fmp4 video muxing
+      MuxingStream muxingStreamVid = new MuxingStream();
+      muxingStreamVid.setStreamId(streamVid.getId());
+
+      Fmp4Muxing muxingVid = new Fmp4Muxing();
+      encodingOutput.setOutputPath(outputPath + "/video");
+      muxingVid.addOutputsItem(encodingOutput);
+      muxingVid.setSegmentLength(segmentLength);
+      muxingVid.addStreamsItem(muxingStreamVid);
+      bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingVid);
+
+      // create audio muxing
+      MuxingStream muxingStreamAudio = new MuxingStream();
+      muxingStreamAudio.setStreamId(streamAudio.getId());
+
+      Fmp4Muxing muxingAudio = new Fmp4Muxing();
+      encodingOutput.setOutputPath(outputPath + "/audio");
+      muxingAudio.addOutputsItem(encodingOutput);
+      muxingAudio.setSegmentLength(segmentLength);
+      muxingAudio.addStreamsItem(muxingStreamAudio);
+      bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingAudio);
+
+      // start the encoding, or queue it if an EncodingScheduler is taking them
+      StartEncodingRequest startEncodingRequest = new StartEncodingRequest();
+      EncodingScheduler.start(bitmovinApi, encoding.getId(), startEncodingRequest);
+
+      // create the DASH manifest
+      DashManifestDefault dashManifestDefault = new DashManifestDefault();
+      dashManifestDefault.setEncodingId(encoding.getId());
+      dashManifestDefault.setManifestName(fileName);
+      dashManifestDefault.setVersion(DashManifestDefaultVersion.V1);
+      encodingOutput.setOutputPath(outputPath);
+      dashManifestDefault.addOutputsItem(encodingOutput);
+      dashManifestDefault =
+          bitmovinApi.encoding.manifests.dash.defaultapi.create(dashManifestDefault);
+
+      // wait for it to be done
+      Task task;
+      do {
+        DryRunPlanner.pause(5000);
+        task = bitmovinApi.encoding.encodings.status(encoding.getId());
+      } while (task.getStatus() != Status.FINISHED
+          && task.getStatus() != Status.ERROR
+          && task.getStatus() != Status.CANCELED);
+
+      if (task.getStatus() == Status.ERROR) {
+        throw new RuntimeException("Encoding failed");
+      }
+
+      bitmovinApi.encoding.manifests.dash.start(dashManifestDefault.getId());
+
+      // the .mpd only exists once its generation has finished; failing here abandons the claim
+      Task manifestTask;
+      do {
+        DryRunPlanner.pause(2000);
+        manifestTask = bitmovinApi.encoding.manifests.dash.status(dashManifestDefault.getId());
+      } while (manifestTask.getStatus() != Status.FINISHED
+          && manifestTask.getStatus() != Status.ERROR
+          && manifestTask.getStatus() != Status.CANCELED);
+
+      if (manifestTask.getStatus() != Status.FINISHED) {
+        throw new RuntimeException("Manifest generation " + manifestTask.getStatus());
+      }
+
+      // remember it so the next identical submission is a no-op
+      if (task.getStatus() == Status.FINISHED) {
+        claim.complete(new EncodeDedup.Result("s3://" + myS3BucketName + outputPath, fileName,
+            encoding.getId()));
+      }
     }
-
-    bitmovinApi.encoding.manifests.dash.start(dashManifestDefault.getId());
   }
 }
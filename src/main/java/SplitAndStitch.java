@@ -0,0 +1,487 @@
+/**
+ * Split and Stitch Exercise
+ *
+ * Splits a long source into time ranges on segment boundaries, encodes every range as its own
+ * Encoding in parallel (time-based trimming on the input), then stitches one DASH manifest
+ * across the parts, one Period per part. Reports wall-clock speedup against one encoding.
+ *
+ * The source's duration is read from its moov. One given on the command line is only used when
+ * the header can't be read (and during a dry run); if both are there they have to agree.
+ *
+ * Usage: java SplitAndStitch [source duration in seconds | auto] [parts]
+ */
+
+import com.bitmovin.api.sdk.BitmovinApi;
+import com.bitmovin.api.sdk.model.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SplitAndStitch {
+  /**
+   * Bunch of variables
+   */
+  private static BitmovinApi bitmovinApi;
+  private static String myApiKey;
+  private static String myS3BucketName;
+  private static String myS3AccessKey;
+  private static String myS3SecretKey;
+  private static final int videoHeight = 720;
+  private static final long videoBitrate = 4000000L;
+  private static final long audioBitrate = 128000L;
+  private static final int defaultParts = 4;
+  private static final double audioSampleRate = 48000.0;
+  private static final int aacFrameSamples = 1024;
+  private static final int maxAlignmentSegments = 64;
+  private static final double durationTolerance = 1.0;
+
+  /**
+   * One time range of the source and the encoding that produces it.
+   */
+  private static final class Part {
+    final int index;
+    final long firstSegment;
+    final long segmentCount;
+    final double offset;
+    final double duration;
+    String encodingId;
+    String videoMuxingId;
+    String audioMuxingId;
+    long submittedAt;
+    long runningAt;
+    long finishedAt;
+
+    Part(int index, long firstSegment, long segmentCount, double segmentLength,
+        double sourceDuration) {
+      this.index = index;
+      this.firstSegment = firstSegment;
+      this.segmentCount = segmentCount;
+      this.offset = firstSegment * segmentLength;
+      this.duration = Math.min(segmentCount * segmentLength, sourceDuration - offset);
+    }
+
+    String path() {
+      return String.format("part_%03d", index);
+    }
+  }
+
+  /**
+   * Get a variable from the environment and throw exception if it doesn't exist.
+   */
+  private static String macGetEnv(String name) throws RuntimeException {
+    String value = DryRunPlanner.env(name);
+    if (value == null) {
+      throw new RuntimeException("Can't get "+name);
+    }
+    return value;
+  }
+
+  /**
+   * Cut the source into parts of whole segments. The encoder puts an IDR frame at every segment
+   * boundary, so each part starts on a keyframe and segment N of the whole title is always
+   * segment (N - firstSegment) of exactly one part; only the very last segment can be short.
+   * Parts are also a whole number of AAC frames long (see audioAlignedSegments), so the audio
+   * is cut between frames and the parts' audio tiles without a gap or an overlap.
+   */
+  static List<Part> planParts(double sourceDuration, int parts, double segmentLength) {
+    if (parts < 1 || !(sourceDuration > 0) || Double.isInfinite(sourceDuration)) {
+      throw new IllegalArgumentException(String.format("Can't split %s s into %d parts",
+          sourceDuration, parts));
+    }
+    long totalSegments = (long) Math.ceil(sourceDuration / segmentLength);
+    long step = Math.max(1, audioAlignedSegments(segmentLength));
+    long perPart = (totalSegments + parts - 1) / parts;
+    perPart = (perPart + step - 1) / step * step;
+    List<Part> plan = new ArrayList<>();
+    for (long first = 0; first < totalSegments; first += perPart) {
+      long count = Math.min(perPart, totalSegments - first);
+      plan.add(new Part(plan.size(), first, count, segmentLength, sourceDuration));
+    }
+    return plan;
+  }
+
+  /**
+   * The source's duration from the video track in its moov. given is the command line value, or
+   * null; it is the fallback when the header can't be read, and must match when it can.
+   */
+  private static double sourceDuration(String location, String given) {
+    Double expected = null;
+    if (given != null && !given.equals("auto")) {
+      try {
+        expected = Double.parseDouble(given);
+      } catch (NumberFormatException e) {
+        throw new RuntimeException("Bad source duration: " + given);
+      }
+      if (!(expected > 0) || expected.isInfinite()) {
+        throw new RuntimeException("Source duration must be positive, got " + given);
+      }
+    }
+    if (DryRunPlanner.isRecording()) {
+      if (expected == null) {
+        throw new RuntimeException("A dry run doesn't read the source; pass its duration");
+      }
+      return expected;
+    }
+
+    double measured;
+    try {
+      measured = KeyframeSegmentPlanner.duration(location);
+    } catch (IOException | RuntimeException e) {
+      if (expected == null) {
+        throw new RuntimeException("Can't read the duration of " + location
+            + "; pass it on the command line", e);
+      }
+      System.out.println("Can't read the duration of " + location + ", using " + expected
+          + " s: " + e.getMessage());
+      return expected;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted reading " + location, e);
+    }
+    if (expected != null && Math.abs(measured - expected) > durationTolerance) {
+      throw new RuntimeException(String.format("%s is %.3f s long, not %s s", location,
+          measured, given));
+    }
+    return measured;
+  }
+
+  /**
+   * Smallest number of segments that is also a whole number of AAC frames (1024 samples at
+   * 48 kHz, 21.33 ms). 4 s segments are 187.5 frames, so parts must be an even number of them.
+   * Returns 0 if no multiple up to maxAlignmentSegments lines up; the cuts then land up to one
+   * frame off and the audio has a sub-frame discontinuity at each Period boundary.
+   */
+  static long audioAlignedSegments(double segmentLength) {
+    double frames = segmentLength * audioSampleRate / aacFrameSamples;
+    for (long segments = 1; segments <= maxAlignmentSegments; segments++) {
+      double total = frames * segments;
+      if (Math.abs(total - Math.rint(total)) < 1e-6) {
+        return segments;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Stop every part that was started and hasn't finished, so a failed run doesn't leave the
+   * other encodings burning minutes. Best effort: a part that can't be stopped is reported.
+   */
+  private static void cancelParts(List<Part> parts) {
+    for (Part part : parts) {
+      if (part.encodingId == null || part.finishedAt != 0) {
+        continue;
+      }
+      try {
+        bitmovinApi.encoding.encodings.stop(part.encodingId);
+      } catch (RuntimeException e) {
+        System.err.printf("could not stop part %d (%s): %s%n", part.index, part.encodingId, e);
+      }
+    }
+  }
+
+  /**
+   * A fresh output per create call, so nothing shares a mutated EncodingOutput.
+   */
+  private static EncodingOutput encodingOutput(String outputId, String path) {
+    EncodingOutput encodingOutput = new EncodingOutput();
+    encodingOutput.setOutputId(outputId);
+    encodingOutput.setOutputPath(path);
+    return encodingOutput;
+  }
+
+  /**
+   * Create and start the encoding for one part.
+   */
+  private static void encodePart(Part part, String inputId, String inputPath, String outputId,
+      String outputPath, String videoConfigId, String audioConfigId, double segmentLength) {
+    // create the encoding
+    Encoding encoding = new Encoding();
+    encoding.setCloudRegion(CloudRegion.AUTO);
+    encoding.setEncoderVersion("LATEST");
+    encoding.setName(String.format("MacKenzie Exercise - Split and Stitch part %d", part.index));
+    encoding = bitmovinApi.encoding.encodings.create(encoding);
+    part.encodingId = encoding.getId();
+
+    Stream streamVid = trimmedStream(part, inputId, inputPath, videoConfigId,
+        StreamSelectionMode.VIDEO_RELATIVE);
+    Stream streamAudio = trimmedStream(part, inputId, inputPath, audioConfigId,
+        StreamSelectionMode.AUDIO_RELATIVE);
+
+    // create the fmp4 muxings, one directory per part
+    part.videoMuxingId = fmp4Muxing(part, streamVid,
+        encodingOutput(outputId, outputPath + "/" + part.path() + "/video"), segmentLength);
+    part.audioMuxingId = fmp4Muxing(part, streamAudio,
+        encodingOutput(outputId, outputPath + "/" + part.path() + "/audio"), segmentLength);
+
+    // start the encoding, or queue it if an EncodingScheduler is taking them
+    part.submittedAt = System.currentTimeMillis();
+    EncodingScheduler.start(bitmovinApi, part.encodingId, new StartEncodingRequest());
+  }
+
+  /**
+   * Ingest one track of the source and trim it to the part's time range.
+   */
+  private static Stream trimmedStream(Part part, String inputId, String inputPath,
+      String codecConfigId, StreamSelectionMode selectionMode) {
+    IngestInputStream ingest = new IngestInputStream();
+    ingest.setInputId(inputId);
+    ingest.setInputPath(inputPath);
+    ingest.setSelectionMode(selectionMode);
+    ingest.setPosition(0);
+    ingest = bitmovinApi.encoding.encodings.inputStreams.ingest.create(part.encodingId, ingest);
+
+    TimeBasedTrimmingInputStream trimming = new TimeBasedTrimmingInputStream();
+    trimming.setInputStreamId(ingest.getId());
+    trimming.setOffset(part.offset);
+    trimming.setDuration(part.duration);
+    trimming = bitmovinApi.encoding.encodings.inputStreams.trimming.timeBased.create(
+        part.encodingId, trimming);
+
+    StreamInput streamInput = new StreamInput();
+    streamInput.setInputStreamId(trimming.getId());
+
+    Stream stream = new Stream();
+    stream.addInputStreamsItem(streamInput);
+    stream.setCodecConfigId(codecConfigId);
+    stream.setMode(StreamMode.STANDARD);
+    return bitmovinApi.encoding.encodings.streams.create(part.encodingId, stream);
+  }
+
+  private static String fmp4Muxing(Part part, Stream stream, EncodingOutput encodingOutput,
+      double segmentLength) {
+    MuxingStream muxingStream = new MuxingStream();
+    muxingStream.setStreamId(stream.getId());
+
+    Fmp4Muxing muxing = new Fmp4Muxing();
+    muxing.addOutputsItem(encodingOutput);
+    muxing.setSegmentLength(segmentLength);
+    muxing.addStreamsItem(muxingStream);
+    return bitmovinApi.encoding.encodings.muxings.fmp4.create(part.encodingId, muxing).getId();
+  }
+
+  /**
+   * One DASH manifest over all the parts: a Period per part, starting exactly where the
+   * previous part's last segment ends.
+   */
+  private static DashManifest stitchManifest(List<Part> parts, String outputId,
+      String outputPath, String fileName) {
+    DashManifest manifest = new DashManifest();
+    manifest.setManifestName(fileName);
+    manifest.setProfile(ProfileDash.LIVE);
+    manifest.addOutputsItem(encodingOutput(outputId, outputPath));
+    manifest = bitmovinApi.encoding.manifests.dash.create(manifest);
+
+    for (Part part : parts) {
+      Period period = new Period();
+      period.setStart(part.offset);
+      period.setDuration(part.duration);
+      period = bitmovinApi.encoding.manifests.dash.periods.create(manifest.getId(), period);
+
+      VideoAdaptationSet videoAdaptationSet = bitmovinApi.encoding.manifests.dash.periods
+          .adaptationsets.video.create(manifest.getId(), period.getId(), new VideoAdaptationSet());
+      AudioAdaptationSet audioAdaptationSet = new AudioAdaptationSet();
+      audioAdaptationSet.setLang("en");
+      audioAdaptationSet = bitmovinApi.encoding.manifests.dash.periods
+          .adaptationsets.audio.create(manifest.getId(), period.getId(), audioAdaptationSet);
+
+      addRepresentation(manifest, period, videoAdaptationSet.getId(), part, part.videoMuxingId,
+          part.path() + "/video");
+      addRepresentation(manifest, period, audioAdaptationSet.getId(), part, part.audioMuxingId,
+          part.path() + "/audio");
+    }
+    return manifest;
+  }
+
+  private static void addRepresentation(DashManifest manifest, Period period,
+      String adaptationSetId, Part part, String muxingId, String segmentPath) {
+    DashFmp4Representation representation = new DashFmp4Representation();
+    representation.setType(DashRepresentationType.TEMPLATE);
+    representation.setEncodingId(part.encodingId);
+    representation.setMuxingId(muxingId);
+    representation.setSegmentPath(segmentPath);
+    bitmovinApi.encoding.manifests.dash.periods.adaptationsets.representations.fmp4.create(
+        manifest.getId(), period.getId(), adaptationSetId, representation);
+  }
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length > 2) {
+      throw new RuntimeException(
+          "Usage: SplitAndStitch [source duration in seconds | auto] [parts]");
+    }
+
+    // some variables
+    final String inputPath = "/input/flower_show_1080p.mov";
+    final String outputPath = "/output/encodings/split_and_stitch";
+    final String fileName = "stitched_output.mpd";
+    final String hostName = "mackenzie-emea.s3.eu-west-1.amazonaws.com";
+    final int requestedParts;
+    try {
+      requestedParts = args.length > 1 ? Integer.parseInt(args[1]) : defaultParts;
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Bad number of parts: " + args[1]);
+    }
+    if (requestedParts < 1) {
+      throw new RuntimeException("Need at least one part, got " + requestedParts);
+    }
+
+    // get some config stuff from environment variables.
+    myApiKey = macGetEnv("BITMOVIN_API_KEY");
+    myS3BucketName = macGetEnv("BITMOVIN_S3_BUCKET_NAME");
+    myS3AccessKey = macGetEnv("BITMOVIN_S3_ACCESS_KEY");
+    myS3SecretKey = macGetEnv("BITMOVIN_S3_SECRET_KEY");
+
+    // line segments (and so part boundaries) up with the source's own keyframes, or fall back
+    // to 4 s
+    final KeyframeSegmentPlanner.Plan segmentPlan =
+        KeyframeSegmentPlanner.planOrDefault("https://" + hostName + inputPath, 4.0);
+    final double segmentLength = segmentPlan.segmentLength;
+    System.out.println("Segment plan: " + segmentPlan);
+
+    final double sourceDuration =
+        sourceDuration("https://" + hostName + inputPath, args.length > 0 ? args[0] : null);
+    final List<Part> parts = planParts(sourceDuration, requestedParts, segmentLength);
+    if (audioAlignedSegments(segmentLength) == 0) {
+      System.out.println("warning: part boundaries are not on AAC frame boundaries");
+    }
+    for (Part part : parts) {
+      System.out.printf("part %d: %.1f s + %.1f s, segments %d..%d%n", part.index, part.offset,
+          part.duration, part.firstSegment, part.firstSegment + part.segmentCount - 1);
+    }
+
+    // create API (DryRunPlanner swaps in its recorder during a dry run)
+    bitmovinApi = DryRunPlanner.api(myApiKey);
+
+    // create the input
+    HttpInput input = new HttpInput();
+    input.setHost(hostName);
+    input = bitmovinApi.encoding.inputs.http.create(input);
+
+    // create the output
+    S3Output output = new S3Output();
+    output.setBucketName(myS3BucketName);
+    output.setAccessKey(myS3AccessKey);
+    output.setSecretKey(myS3SecretKey);
+    output = bitmovinApi.encoding.outputs.s3.create(output);
+
+    // create the H264 video config, shared by every part
+    H264VideoConfiguration videoConfiguration = new H264VideoConfiguration();
+    videoConfiguration.setName(String.format("H.264 %dp", videoHeight));
+    videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_STANDARD);
+    videoConfiguration.setHeight(videoHeight);
+    videoConfiguration.setBitrate(videoBitrate);
+    segmentPlan.apply(videoConfiguration);
+    videoConfiguration =
+        bitmovinApi.encoding.configurations.video.h264.create(videoConfiguration);
+
+    // create the AAC audio config, shared by every part
+    AacAudioConfiguration audioConfiguration = new AacAudioConfiguration();
+    audioConfiguration.setName(String.format("AAC %d kbit/s", audioBitrate));
+    audioConfiguration.setBitrate(audioBitrate);
+    // pinned, since the part boundaries are aligned to AAC frames at this rate
+    audioConfiguration.setRate(audioSampleRate);
+    audioConfiguration = bitmovinApi.encoding.configurations.audio.aac.create(audioConfiguration);
+
+    // set up and start every part at once
+    final String inputId = input.getId();
+    final String outputId = output.getId();
+    final String videoConfigId = videoConfiguration.getId();
+    final String audioConfigId = audioConfiguration.getId();
+    final long startedAt = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(parts.size());
+    try {
+      List<Future<?>> submissions = new ArrayList<>();
+      for (Part part : parts) {
+        submissions.add(executor.submit(() -> encodePart(part, inputId, inputPath, outputId,
+            outputPath, videoConfigId, audioConfigId, segmentLength)));
+      }
+      // let every submission settle before acting on a failure, so none starts after the cancel
+      ExecutionException failure = null;
+      for (Future<?> submission : submissions) {
+        try {
+          submission.get();
+        } catch (ExecutionException e) {
+          failure = failure == null ? e : failure;
+        }
+      }
+      if (failure != null) {
+        throw new RuntimeException("Setting up a part failed", failure.getCause());
+      }
+
+      // wait for all of them to be done
+      int remaining = parts.size();
+      while (remaining > 0) {
+        DryRunPlanner.pause(5000);
+        remaining = 0;
+        for (Part part : parts) {
+          if (part.finishedAt != 0) {
+            continue;
+          }
+          Task task = bitmovinApi.encoding.encodings.status(part.encodingId);
+          long now = System.currentTimeMillis();
+          if (task.getStatus() == Status.RUNNING && part.runningAt == 0) {
+            part.runningAt = now;
+          }
+          if (task.getStatus() == Status.ERROR || task.getStatus() == Status.CANCELED) {
+            part.finishedAt = now;
+            throw new RuntimeException(String.format("Encoding of part %d failed", part.index));
+          }
+          if (task.getStatus() == Status.FINISHED) {
+            part.finishedAt = now;
+            if (part.runningAt == 0) {
+              part.runningAt = now;
+            }
+          } else {
+            remaining++;
+          }
+        }
+      }
+    } catch (Exception e) {
+      cancelParts(parts);
+      throw e;
+    } finally {
+      executor.shutdown();
+    }
+    final long finishedAt = System.currentTimeMillis();
+
+    // stitch the parts into one manifest
+    DashManifest manifest = stitchManifest(parts, outputId, outputPath, fileName);
+    bitmovinApi.encoding.manifests.dash.start(manifest.getId());
+
+    report(parts, finishedAt - startedAt);
+  }
+
+  /**
+   * Print measured wall-clock for this run and the modelled speedup for other part counts.
+   * Each part costs a fixed startup (queueing, provisioning, probing the input) plus encode
+   * time proportional to its length, so k parts take roughly startup + work / k.
+   */
+  private static void report(List<Part> parts, long wallClockMs) {
+    double startup = 0.0;
+    double work = 0.0;
+    for (Part part : parts) {
+      startup += part.runningAt - part.submittedAt;
+      work += part.finishedAt - part.runningAt;
+    }
+    startup /= parts.size();
+    double single = startup + work;
+
+    System.out.printf("%d parts finished in %.1f s (one encoding estimated at %.1f s)%n",
+        parts.size(), wallClockMs / 1000.0, single / 1000.0);
+    System.out.printf("startup %.1f s per encoding, %.1f s of encode work in total%n",
+        startup / 1000.0, work / 1000.0);
+    System.out.println("parts  est. wall-clock  speedup");
+    for (int k = 1; k <= Math.max(16, parts.size() * 2); k *= 2) {
+      double estimate = startup + work / k;
+      System.out.printf("%5d  %13.1f s  %6.2fx%n", k, estimate / 1000.0, single / estimate);
+    }
+    System.out.printf("%5d  %13.1f s  %6.2fx  (measured)%n", parts.size(),
+        wallClockMs / 1000.0, single / wallClockMs);
+  }
+}
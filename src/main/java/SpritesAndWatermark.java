@@ -1,5 +1,10 @@
 /**
  * Sprites and Watermark Exercise
+ *
+ * With SPRITES_PREVIEW_PASS=true in the environment, sprites and thumbnails come from a separate
+ * low-resolution encoding without the watermark filters, started before the main encoding, so
+ * seek previews are ready long before the full 720p watermarked encode finishes. Without it the
+ * main encoding makes them, as before.
  */
 
 import com.bitmovin.api.sdk.BitmovinApi;
@@ -19,12 +24,16 @@ public class SpritesAndWatermark {
   private static final int videoHeight = 720;
   private static final long videoBitrate = 4000000L;
   private static final long audioBitrate = 128000L;
+  private static final boolean earlyPreviewPass =
+      Boolean.parseBoolean(System.getenv("SPRITES_PREVIEW_PASS"));
+  private static final int previewHeight = 360;
+  private static final long previewBitrate = 400000L;
 
   /**
    * Get a variable from the environment and throw exception if it doesn't exist.
    */
   private static String macGetEnv(String name) throws RuntimeException {
-    String value = System.getenv(name);
+    String value = DryRunPlanner.env(name);
     if (value == null) {
       throw new RuntimeException("Can't get "+name);
     }
@@ -32,63 +41,30 @@ public class SpritesAndWatermark {
   }
 
   /**
-   * Main entry point
+   * Create and start the lightweight preview encoding: one low-resolution video stream, no
+   * filters, no muxings, only sprite and thumbnail outputs.
    */
-  public static void main(String[] args) throws Exception {
-
-    // some variables
-    final String inputPath = "/input/flower_show_1080p.mov";
-    final String outputPath = "/output/encodings/sprites_and_watermark";
-    final String fileName = "output.mpd";
-    final String hostName = "mackenzie-emea.s3.eu-west-1.amazonaws.com";
-    final double segmentLength = 4.0;
-
-    // get some config stuff from environment variables.
-    myApiKey = macGetEnv("BITMOVIN_API_KEY");
-    myS3BucketName = macGetEnv("BITMOVIN_S3_BUCKET_NAME");
-    myS3AccessKey = macGetEnv("BITMOVIN_S3_ACCESS_KEY");
-    myS3SecretKey = macGetEnv("BITMOVIN_S3_SECRET_KEY");
-
-    // create API
-    BitmovinApi bitmovinApi = BitmovinApi.builder().withApiKey(myApiKey).build();
-
-    // create the input
-    HttpInput input = new HttpInput();
-    input.setHost(hostName);
-    input = bitmovinApi.encoding.inputs.http.create(input);
-
-    // create the output
-    S3Output output = new S3Output();
-    output.setBucketName(myS3BucketName);
-    output.setAccessKey(myS3AccessKey);
-    output.setSecretKey(myS3SecretKey);
-    output = bitmovinApi.encoding.outputs.s3.create(output);
-
+  private static String startPreviewEncoding(BitmovinApi bitmovinApi, String inputId,
+      String inputPath, String outputId, String outputPath) {
     // create the encoding
     Encoding encoding = new Encoding();
     encoding.setCloudRegion(CloudRegion.AUTO);
     encoding.setEncoderVersion("LATEST");
-    encoding.setName("MacKenzie Exercise - Sprites and Watermark");
+    encoding.setName("MacKenzie Exercise - Sprites and Watermark (previews)");
     encoding = bitmovinApi.encoding.encodings.create(encoding);
 
-    // create the H264 video config
+    // create the low-res H264 video config, tuned for speed
     H264VideoConfiguration videoConfiguration = new H264VideoConfiguration();
-    videoConfiguration.setName(String.format("H.264 %dp", videoHeight));
-    videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_STANDARD);
-    videoConfiguration.setHeight(videoHeight);
-    videoConfiguration.setBitrate(videoBitrate);
+    videoConfiguration.setName(String.format("H.264 %dp preview", previewHeight));
+    videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_SPEED);
+    videoConfiguration.setHeight(previewHeight);
+    videoConfiguration.setBitrate(previewBitrate);
     videoConfiguration =
         bitmovinApi.encoding.configurations.video.h264.create(videoConfiguration);
 
-    // create the AAC audio config
-    AacAudioConfiguration audioConfiguration = new AacAudioConfiguration();
-    audioConfiguration.setName(String.format("AAC %d kbit/s", audioBitrate));
-    audioConfiguration.setBitrate(audioBitrate);
-    audioConfiguration = bitmovinApi.encoding.configurations.audio.aac.create(audioConfiguration);
-
     // create input stream
     StreamInput streamInput = new StreamInput();
-    streamInput.setInputId(input.getId());
+    streamInput.setInputId(inputId);
     streamInput.setInputPath(inputPath);
     streamInput.setSelectionMode(StreamSelectionMode.AUTO);
 
@@ -97,126 +73,321 @@ public class SpritesAndWatermark {
     streamVid.addInputStreamsItem(streamInput);
     streamVid.setCodecConfigId(videoConfiguration.getId());
     streamVid.setMode(StreamMode.STANDARD);
+    streamVid = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamVid);
 
-    // set audio stream
-    Stream streamAudio = new Stream();
-    streamAudio.addInputStreamsItem(streamInput);
-    streamAudio.setCodecConfigId(audioConfiguration.getId());
-    streamAudio.setMode(StreamMode.STANDARD);
+    // create sprites, same place and names the main encoding would use
+    EncodingOutput spritesOutput = new EncodingOutput();
+    spritesOutput.setOutputId(outputId);
+    spritesOutput.setOutputPath(outputPath + "/sprites");
+
+    Sprite sprites = new Sprite();
+    sprites.addOutputsItem(spritesOutput);
+    sprites.setName("sprites.jpg");
+    sprites.setSpriteName("spritesName.jpg");
+    sprites.setWidth(320);
+    sprites.setHeight(240);
+    sprites.setDistance(4.0);
+    sprites.setVttName("sprites.vtt");
+    sprites.setJpegConfig(new SpriteJpegConfig());
+    sprites.setCreationMode(SpriteCreationMode.INTERVAL_START);
+    bitmovinApi.encoding.encodings.streams.sprites.create(
+        encoding.getId(), streamVid.getId(), sprites);
+
+    // create editorial thumbnails
+    EncodingOutput thumbnailsOutput = new EncodingOutput();
+    thumbnailsOutput.setOutputId(outputId);
+    thumbnailsOutput.setOutputPath(outputPath + "/thumbnails");
+
+    Thumbnail thumbnail = new Thumbnail();
+    thumbnail.addOutputsItem(thumbnailsOutput);
+    thumbnail.setHeight(previewHeight);
+    thumbnail.setPattern("thumbnail-%number%.png");
+    thumbnail.setUnit(ThumbnailUnit.PERCENTS);
+    thumbnail.setPositions(List.of(0.0, 10.0, 25.0, 50.0, 75.0, 90.0));
+    bitmovinApi.encoding.encodings.streams.thumbnails.create(
+        encoding.getId(), streamVid.getId(), thumbnail);
+
+    // start the encoding, or queue it if an EncodingScheduler is taking them
+    StartEncodingRequest startEncodingRequest = new StartEncodingRequest();
+    EncodingScheduler.start(bitmovinApi, encoding.getId(), startEncodingRequest);
+    return encoding.getId();
+  }
 
-    // create the streams
-    streamVid = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamVid);
-    streamAudio = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamAudio);
-
-    // create encoding output
-    EncodingOutput encodingOutput = new EncodingOutput();
-    encodingOutput.setOutputPath(outputPath);
-    encodingOutput.setOutputId(output.getId());
-
-    // create the fmp4 video muxing
-    MuxingStream muxingStreamVid = new MuxingStream();
-    muxingStreamVid.setStreamId(streamVid.getId());
-
-    Fmp4Muxing muxingVid = new Fmp4Muxing();
-    encodingOutput.setOutputPath(outputPath + "/video");
-    muxingVid.addOutputsItem(encodingOutput);
-    muxingVid.setSegmentLength(segmentLength);
-    muxingVid.addStreamsItem(muxingStreamVid);
-    bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingVid);
-
-    // create audio muxing
-    MuxingStream muxingStreamAudio = new MuxingStream();
-    muxingStreamAudio.setStreamId(streamAudio.getId());
-
-    Fmp4Muxing muxingAudio = new Fmp4Muxing();
-    encodingOutput.setOutputPath(outputPath + "/audio");
-    muxingAudio.addOutputsItem(encodingOutput);
-    muxingAudio.setSegmentLength(segmentLength);
-    muxingAudio.addStreamsItem(muxingStreamAudio);
-    bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingAudio);
-
-    // create filters
-    if (true) {
-      // create the watermark filter
-      WatermarkFilter watermarkFilter = new WatermarkFilter();
-      watermarkFilter.setImage("https://mackenzie-emea.s3.eu-west-1.amazonaws.com/input/watermark.png");
-      watermarkFilter.setTop(10);
-      watermarkFilter.setLeft(10);
-      watermarkFilter = bitmovinApi.encoding.filters.watermark.create(watermarkFilter);
-
-      // create the text filter
-      TextFilter textFilter = new TextFilter();
-      textFilter.setText("TEST TEXT");
-      textFilter.setX("main_w / 16");
-      textFilter.setY("main_h / 9");
-      textFilter.setFontSize(64);
-      textFilter.setFontColor("white");
-      textFilter.setShadowColor("black");
-      textFilter.setShadowX(4);
-      textFilter.setShadowY(4);
-      textFilter = bitmovinApi.encoding.filters.text.create(textFilter);
-
-      // create stream filters list
-      List<Filter> filters = new ArrayList<>();
-      filters.add(watermarkFilter);
-      filters.add(textFilter);
-
-      List<StreamFilter> streamFilters = new ArrayList<>();
-      int position = 0;
-      for (Filter filter : filters) {
-        StreamFilter streamFilter = new StreamFilter();
-        streamFilter.setId(filter.getId());
-        streamFilter.setPosition(position++);
-        streamFilters.add(streamFilter);
+  private static boolean isDone(Task task) {
+    return task != null
+        && (task.getStatus() == Status.FINISHED
+            || task.getStatus() == Status.ERROR
+            || task.getStatus() == Status.CANCELED);
+  }
+
+  /**
+   * Main entry point
+   */
+  public static void main(String[] args) throws Exception {
+
+    // some variables
+    final String inputPath = "/input/flower_show_1080p.mov";
+    final String outputBase = "/output/encodings/sprites_and_watermark";
+    final String fileName = "output.mpd";
+    final String hostName = "mackenzie-emea.s3.eu-west-1.amazonaws.com";
+
+    // line segments up with the source's own keyframes, or fall back to 4 s
+    final KeyframeSegmentPlanner.Plan segmentPlan =
+        KeyframeSegmentPlanner.planOrDefault("https://" + hostName + inputPath, 4.0);
+    final double segmentLength = segmentPlan.segmentLength;
+    System.out.println("Segment plan: " + segmentPlan);
+
+    // get some config stuff from environment variables.
+    myApiKey = macGetEnv("BITMOVIN_API_KEY");
+    myS3BucketName = macGetEnv("BITMOVIN_S3_BUCKET_NAME");
+    myS3AccessKey = macGetEnv("BITMOVIN_S3_ACCESS_KEY");
+    myS3SecretKey = macGetEnv("BITMOVIN_S3_SECRET_KEY");
+
+    // don't encode the same source with the same settings twice
+    try (EncodeDedup.Claim claim = EncodeDedup.open().claim(new EncodeDedup.Fingerprint()
+        .input(hostName, inputPath)
+        .with("video.codec", "H264 " + PresetConfiguration.VOD_STANDARD)
+        .with("video.height", videoHeight)
+        .with("video.bitrate", videoBitrate)
+        .with("video.mode", StreamMode.STANDARD)
+        .with("video.gop", segmentPlan.gopFrames)
+        .with("video.sceneCut", segmentPlan.gopFrames > 0 ? "off" : "preset")
+        .with("audio.codec", "AAC")
+        .with("audio.bitrate", audioBitrate)
+        .with("audio.mode", StreamMode.STANDARD)
+        .with("muxing", "FMP4 " + segmentLength)
+        .with("manifest", "DASH default " + DashManifestDefaultVersion.V1)
+        .with("filters", "watermark input/watermark.png 10,10; text TEST TEXT 64 white")
+        .with("sprites", "320x240 every 4.0 s " + SpriteCreationMode.INTERVAL_START)
+        .with("previews", earlyPreviewPass ? previewHeight + "p " + previewBitrate : "inline"))) {
+      if (claim.previous() != null) {
+        System.out.println("Already encoded: " + claim.previous());
+        return;
       }
 
-      bitmovinApi.encoding.encodings.streams.filters.create(
-          encoding.getId(), streamVid.getId(), streamFilters);
-    }
+      // each fingerprint writes to its own directory, so no other job can overwrite the
+      // files an index entry points at
+      final String outputPath = claim.outputPath(outputBase);
+
+      // create API (DryRunPlanner swaps in its recorder during a dry run)
+      BitmovinApi bitmovinApi = DryRunPlanner.api(myApiKey);
+
+      // create the input
+      HttpInput input = new HttpInput();
+      input.setHost(hostName);
+      input = bitmovinApi.encoding.inputs.http.create(input);
+
+      // create the output
+      S3Output output = new S3Output();
+      output.setBucketName(myS3BucketName);
+      output.setAccessKey(myS3AccessKey);
+      output.setSecretKey(myS3SecretKey);
+      output = bitmovinApi.encoding.outputs.s3.create(output);
+
+      // kick off the preview pass first so sprites don't wait for the main encoding
+      String previewEncodingId = null;
+      final long previewStartedAt = System.currentTimeMillis();
+      if (earlyPreviewPass) {
+        previewEncodingId = startPreviewEncoding(bitmovinApi, input.getId(), inputPath,
+            output.getId(), outputPath);
+      }
 
-    // create sprites
-    if (true) {
-      Sprite sprites = new Sprite();
-      encodingOutput.setOutputPath(outputPath + "/sprites");
-      sprites.addOutputsItem(encodingOutput);
-      sprites.setName("sprites.jpg");
-      sprites.setSpriteName("spritesName.jpg");
-      sprites.setWidth(320);
-      sprites.setHeight(240);
-      sprites.setDistance(4.0);
-      sprites.setVttName("sprites.vtt");
-      sprites.setJpegConfig(new SpriteJpegConfig());
-      sprites.setCreationMode(SpriteCreationMode.INTERVAL_START);
-      bitmovinApi.encoding.encodings.streams.sprites.create(
-          encoding.getId(), streamVid.getId(), sprites);
-    }
+      // create the encoding
+      Encoding encoding = new Encoding();
+      encoding.setCloudRegion(CloudRegion.AUTO);
+      encoding.setEncoderVersion("LATEST");
+      encoding.setName("MacKenzie Exercise - Sprites and Watermark");
+      encoding = bitmovinApi.encoding.encodings.create(encoding);
+
+      // create the H264 video config
+      H264VideoConfiguration videoConfiguration = new H264VideoConfiguration();
+      videoConfiguration.setName(String.format("H.264 %dp", videoHeight));
+      videoConfiguration.setPresetConfiguration(PresetConfiguration.VOD_STANDARD);
+      videoConfiguration.setHeight(videoHeight);
+      videoConfiguration.setBitrate(videoBitrate);
+      segmentPlan.apply(videoConfiguration);
+      videoConfiguration =
+          bitmovinApi.encoding.configurations.video.h264.create(videoConfiguration);
+
+      // create the AAC audio config
+      AacAudioConfiguration audioConfiguration = new AacAudioConfiguration();
+      audioConfiguration.setName(String.format("AAC %d kbit/s", audioBitrate));
+      audioConfiguration.setBitrate(audioBitrate);
+      audioConfiguration = bitmovinApi.encoding.configurations.audio.aac.create(audioConfiguration);
+
+      // create input stream
+      StreamInput streamInput = new StreamInput();
+      streamInput.setInputId(input.getId());
+      streamInput.setInputPath(inputPath);
+      streamInput.setSelectionMode(StreamSelectionMode.AUTO);
+
+      // set video stream
+      Stream streamVid = new Stream();
+      streamVid.addInputStreamsItem(streamInput);
+      streamVid.setCodecConfigId(videoConfiguration.getId());
+      streamVid.setMode(StreamMode.STANDARD);
+
+      // set audio stream
+      Stream streamAudio = new Stream();
+      streamAudio.addInputStreamsItem(streamInput);
+      streamAudio.setCodecConfigId(audioConfiguration.getId());
+      streamAudio.setMode(StreamMode.STANDARD);
+
+      // create the streams
+      streamVid = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamVid);
+      streamAudio = bitmovinApi.encoding.encodings.streams.create(encoding.getId(), streamAudio);
+
+      // create encoding output
+      EncodingOutput encodingOutput = new EncodingOutput();
+      encodingOutput.setOutputPath(outputPath);
+      encodingOutput.setOutputId(output.getId());
+
+      // create the fmp4 video muxing
+      MuxingStream muxingStreamVid = new MuxingStream();
+      muxingStreamVid.setStreamId(streamVid.getId());
+
+      Fmp4Muxing muxingVid = new Fmp4Muxing();
+      encodingOutput.setOutputPath(outputPath + "/video");
+      muxingVid.addOutputsItem(encodingOutput);
+      muxingVid.setSegmentLength(segmentLength);
+      muxingVid.addStreamsItem(muxingStreamVid);
+      bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingVid);
+
+      // create audio muxing
+      MuxingStream muxingStreamAudio = new MuxingStream();
+      muxingStreamAudio.setStreamId(streamAudio.getId());
+
+      Fmp4Muxing muxingAudio = new Fmp4Muxing();
+      encodingOutput.setOutputPath(outputPath + "/audio");
+      muxingAudio.addOutputsItem(encodingOutput);
+      muxingAudio.setSegmentLength(segmentLength);
+      muxingAudio.addStreamsItem(muxingStreamAudio);
+      bitmovinApi.encoding.encodings.muxings.fmp4.create(encoding.getId(), muxingAudio);
+
+      // create filters
+      if (true) {
+        // create the watermark filter
+        WatermarkFilter watermarkFilter = new WatermarkFilter();
+        watermarkFilter.setImage(
+            "https://mackenzie-emea.s3.eu-west-1.amazonaws.com/input/watermark.png");
+        watermarkFilter.setTop(10);
+        watermarkFilter.setLeft(10);
+        watermarkFilter = bitmovinApi.encoding.filters.watermark.create(watermarkFilter);
+
+        // create the text filter
+        TextFilter textFilter = new TextFilter();
+        textFilter.setText("TEST TEXT");
+        textFilter.setX("main_w / 16");
+        textFilter.setY("main_h / 9");
+        textFilter.setFontSize(64);
+        textFilter.setFontColor("white");
+        textFilter.setShadowColor("black");
+        textFilter.setShadowX(4);
+        textFilter.setShadowY(4);
+        textFilter = bitmovinApi.encoding.filters.text.create(textFilter);
+
+        // create stream filters list
+        List<Filter> filters = new ArrayList<>();
+        filters.add(watermarkFilter);
+        filters.add(textFilter);
+
+        List<StreamFilter> streamFilters = new ArrayList<>();
+        int position = 0;
+        for (Filter filter : filters) {
+          StreamFilter streamFilter = new StreamFilter();
+          streamFilter.setId(filter.getId());
+          streamFilter.setPosition(position++);
+          streamFilters.add(streamFilter);
+        }
+
+        bitmovinApi.encoding.encodings.streams.filters.create(
+            encoding.getId(), streamVid.getId(), streamFilters);
+      }
 
-    // start the encoding
-    StartEncodingRequest startEncodingRequest = new StartEncodingRequest();
-    bitmovinApi.encoding.encodings.start(encoding.getId(), startEncodingRequest);
-
-    // create the DASH manifest
-    DashManifestDefault dashManifestDefault = new DashManifestDefault();
-    dashManifestDefault.setEncodingId(encoding.getId());
-    dashManifestDefault.setManifestName(fileName);
-    dashManifestDefault.setVersion(DashManifestDefaultVersion.V1);
-    encodingOutput.setOutputPath(outputPath);
-    dashManifestDefault.addOutputsItem(encodingOutput);
-    dashManifestDefault = bitmovinApi.encoding.manifests.dash.defaultapi.create(dashManifestDefault);
-
-    // wait for it to be done
-    Task task;
-    do {
-      Thread.sleep(5000);
-      task = bitmovinApi.encoding.encodings.status(encoding.getId());
-    } while (task.getStatus() != Status.FINISHED
-        && task.getStatus() != Status.ERROR
-        && task.getStatus() != Status.CANCELED);
-
-    if (task.getStatus() == Status.ERROR) {
-      throw new RuntimeException("Encoding failed");
-    }
+      // create sprites, unless the preview pass already makes them
+      if (!earlyPreviewPass) {
+        Sprite sprites = new Sprite();
+        encodingOutput.setOutputPath(outputPath + "/sprites");
+        sprites.addOutputsItem(encodingOutput);
+        sprites.setName("sprites.jpg");
+        sprites.setSpriteName("spritesName.jpg");
+        sprites.setWidth(320);
+        sprites.setHeight(240);
+        sprites.setDistance(4.0);
+        sprites.setVttName("sprites.vtt");
+        sprites.setJpegConfig(new SpriteJpegConfig());
+        sprites.setCreationMode(SpriteCreationMode.INTERVAL_START);
+        bitmovinApi.encoding.encodings.streams.sprites.create(
+            encoding.getId(), streamVid.getId(), sprites);
+      }
+
+      // start the encoding, or queue it if an EncodingScheduler is taking them
+      StartEncodingRequest startEncodingRequest = new StartEncodingRequest();
+      EncodingScheduler.start(bitmovinApi, encoding.getId(), startEncodingRequest);
+
+      // create the DASH manifest
+      DashManifestDefault dashManifestDefault = new DashManifestDefault();
+      dashManifestDefault.setEncodingId(encoding.getId());
+      dashManifestDefault.setManifestName(fileName);
+      dashManifestDefault.setVersion(DashManifestDefaultVersion.V1);
+      encodingOutput.setOutputPath(outputPath);
+      dashManifestDefault.addOutputsItem(encodingOutput);
+      dashManifestDefault =
+          bitmovinApi.encoding.manifests.dash.defaultapi.create(dashManifestDefault);
+
+      // wait for it to be done, reporting the previews as soon as they land
+      Task task;
+      Task previewTask = null;
+      do {
+        DryRunPlanner.pause(5000);
+        task = bitmovinApi.encoding.encodings.status(encoding.getId());
+        if (previewEncodingId != null && !isDone(previewTask)) {
+          previewTask = bitmovinApi.encoding.encodings.status(previewEncodingId);
+          if (isDone(previewTask)) {
+            System.out.printf("Previews %s after %.1f s%n", previewTask.getStatus(),
+                (System.currentTimeMillis() - previewStartedAt) / 1000.0);
+          }
+        }
+      } while (task.getStatus() != Status.FINISHED
+          && task.getStatus() != Status.ERROR
+          && task.getStatus() != Status.CANCELED);
+
+      if (task.getStatus() != Status.FINISHED) {
+        throw new RuntimeException("Encoding " + task.getStatus());
+      }
+
+      bitmovinApi.encoding.manifests.dash.start(dashManifestDefault.getId());
 
-    bitmovinApi.encoding.manifests.dash.start(dashManifestDefault.getId());
+      // the .mpd only exists once its generation has finished; failing here abandons the claim
+      Task manifestTask;
+      do {
+        DryRunPlanner.pause(2000);
+        manifestTask = bitmovinApi.encoding.manifests.dash.status(dashManifestDefault.getId());
+      } while (manifestTask.getStatus() != Status.FINISHED
+          && manifestTask.getStatus() != Status.ERROR
+          && manifestTask.getStatus() != Status.CANCELED);
+
+      if (manifestTask.getStatus() != Status.FINISHED) {
+        throw new RuntimeException("Manifest generation " + manifestTask.getStatus());
+      }
+
+      // the DASH output references the sprites, so let the preview pass settle before recording
+      while (previewEncodingId != null && !isDone(previewTask)) {
+        DryRunPlanner.pause(5000);
+        previewTask = bitmovinApi.encoding.encodings.status(previewEncodingId);
+        if (isDone(previewTask)) {
+          System.out.printf("Previews %s after %.1f s%n", previewTask.getStatus(),
+              (System.currentTimeMillis() - previewStartedAt) / 1000.0);
+        }
+      }
+      if (previewTask != null && previewTask.getStatus() != Status.FINISHED) {
+        throw new RuntimeException("Preview encoding " + previewEncodingId + " "
+            + previewTask.getStatus() + "; the sprites the DASH output references are missing");
+      }
+
+      // remember it so the next identical submission is a no-op
+      claim.complete(new EncodeDedup.Result("s3://" + myS3BucketName + outputPath, fileName,
+          encoding.getId()));
+    }
   }
 }